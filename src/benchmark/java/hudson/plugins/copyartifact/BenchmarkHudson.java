@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.FilePath;
+import hudson.remoting.Channel;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Hudson instance for a benchmark state, started and stopped as for a test.
+ */
+public abstract class BenchmarkHudson extends HudsonTestCase {
+    private ExecutorService executor;
+    private Channel local, remote;
+
+    protected BenchmarkHudson() {
+        // HudsonTestCase looks for recipe annotations on the method named by the test name
+        super("benchmark");
+    }
+
+    public void benchmark() { }
+
+    protected void startHudson() throws Exception {
+        setUp();
+    }
+
+    protected void stopHudson() throws Exception {
+        if (local != null) {
+            local.close();
+            remote.close();
+            executor.shutdownNow();
+        }
+        tearDown();
+    }
+
+    /**
+     * Refer to a directory through a channel to this same JVM, so operations on it
+     * go through remoting as for a directory on a slave.
+     */
+    protected FilePath loopback(File dir) throws Exception {
+        if (local == null) {
+            executor = Executors.newCachedThreadPool();
+            FastPipedInputStream in1 = new FastPipedInputStream(), in2 = new FastPipedInputStream();
+            final FastPipedOutputStream out1 = new FastPipedOutputStream(in1),
+                                        out2 = new FastPipedOutputStream(in2);
+            // Each end waits for the other while starting, so start one in another thread
+            final FastPipedInputStream remoteIn = in2;
+            Future<Channel> other = executor.submit(new Callable<Channel>() {
+                public Channel call() throws IOException {
+                    return new Channel("remote", executor, remoteIn, out1);
+                }
+            });
+            local = new Channel("local", executor, in1, out2);
+            remote = other.get();
+        }
+        return new FilePath(local, dir.getAbsolutePath());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.tasks.Builder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link BuildSelector#getBuild} over build histories of varied depth and
+ * mix of results.  The oldest build is the only one marked to be kept.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BuildSelectorBenchmark {
+
+    /** Results of the builds in a history, oldest first. */
+    public enum Mix {
+        /** All builds stable */
+        STABLE {
+            Result result(int i, int depth) {
+                return Result.SUCCESS;
+            }
+        },
+        /** Stable, unstable and failed builds in turn */
+        MIXED {
+            Result result(int i, int depth) {
+                return i % 3 == 0 ? Result.SUCCESS : (i % 3 == 1 ? Result.UNSTABLE : Result.FAILURE);
+            }
+        },
+        /** A few stable builds followed by a long run of failed builds */
+        FAILING_STREAK {
+            Result result(int i, int depth) {
+                return i < depth / 10 ? Result.SUCCESS : Result.FAILURE;
+            }
+        };
+
+        abstract Result result(int i, int depth);
+    }
+
+    @State(Scope.Benchmark)
+    public static class History extends BenchmarkHudson {
+        @Param({"50", "500"})
+        public int depth;
+
+        @Param({"STABLE", "MIXED", "FAILING_STREAK"})
+        public Mix mix;
+
+        FreeStyleProject job;
+        final EnvVars env = new EnvVars();
+
+        @Setup
+        public void setUpHistory() throws Exception {
+            startHudson();
+            job = createFreeStyleProject();
+            ResultBuilder builder = new ResultBuilder();
+            job.getBuildersList().add(builder);
+            for (int i = 0; i < depth; i++) {
+                builder.result = mix.result(i, depth);
+                FreeStyleBuild b = job.scheduleBuild2(0).get();
+                if (i == 0) b.keepLog(true);
+            }
+        }
+
+        @TearDown
+        public void tearDownHistory() throws Exception {
+            stopHudson();
+        }
+    }
+
+    private static class ResultBuilder extends Builder {
+        private transient Result result = Result.SUCCESS;
+
+        @Override
+        public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) {
+            build.setResult(result);
+            return true;
+        }
+    }
+
+    /** Walks back through completed builds, as selectors did before builds were indexed. */
+    private static final BuildSelector WALK_STABLE = new BuildSelector() {
+        @Override
+        protected boolean isSelectable(Run<?,?> run, EnvVars env) {
+            return run.getResult().isBetterOrEqualTo(Result.SUCCESS);
+        }
+    };
+
+    @Benchmark
+    public Run<?,?> lastStable(History h) {
+        return new StatusBuildSelector(true).getBuild(h.job, null, h.env);
+    }
+
+    @Benchmark
+    public Run<?,?> lastSuccessful(History h) {
+        return new StatusBuildSelector(false).getBuild(h.job, null, h.env);
+    }
+
+    @Benchmark
+    public Run<?,?> lastSaved(History h) {
+        return new SavedBuildSelector().getBuild(h.job, null, h.env);
+    }
+
+    @Benchmark
+    public Run<?,?> lastStableWalk(History h) {
+        return WALK_STABLE.getBuild(h.job, null, h.env);
+    }
+
+    @Benchmark
+    public Run<?,?> lastStableCached(History h) {
+        return SelectionCache.getBuild(new StatusBuildSelector(true), h.job, h.env);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the CopyMethod that CopyArtifact uses copying sets of files to a local
+ * directory, or to a directory reached through a loopback channel as on a slave: with
+ * the default configuration, {@link FilePathCopyMethod}, and with parallel copy enabled,
+ * the first method of the extension list.  File content is random, so it does not compress.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CopyMethodBenchmark {
+
+    /** Sets of files to copy. */
+    public enum FileSet {
+        MANY_SMALL(1000, 1024),
+        SOME_MEDIUM(100, 64 * 1024),
+        FEW_LARGE(4, 16 * 1024 * 1024);
+
+        final int count, size;
+
+        FileSet(int count, int size) {
+            this.count = count;
+            this.size = size;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Files extends BenchmarkHudson {
+        @Param({"MANY_SMALL", "SOME_MEDIUM", "FEW_LARGE"})
+        public FileSet files;
+
+        @Param({"local", "loopback"})
+        public String target;
+
+        /** "default", or "parallel" to copy with parallel copy enabled. */
+        @Param({"default", "parallel"})
+        public String method;
+
+        CopyMethod copier;
+        FilePath srcDir, targetDir, source, targetFile;
+
+        @Setup
+        public void setUpFiles() throws Exception {
+            startHudson();
+            CopyArtifact.DescriptorImpl d =
+                    hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+            d.setParallelCopy("parallel".equals(method));
+            copier = d.getCopyMethod();
+            File src = createTmpDir(), dest = createTmpDir();
+            Random random = new Random(files.ordinal());
+            byte[] buf = new byte[files.size];
+            for (int i = 0; i < files.count; i++) {
+                File file = new File(src, "dir" + (i % 10) + "/file" + i + ".bin");
+                file.getParentFile().mkdirs();
+                random.nextBytes(buf);
+                write(file, buf);
+            }
+            srcDir = new FilePath(src);
+            targetDir = "loopback".equals(target) ? loopback(dest) : new FilePath(dest);
+            source = srcDir.child("dir0/file0.bin");
+            targetFile = targetDir.child("file0.bin");
+            copier.init(srcDir, targetDir);
+        }
+
+        @TearDown
+        public void tearDownFiles() throws Exception {
+            stopHudson();
+        }
+
+        private static void write(File file, byte[] content) throws IOException {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    @Benchmark
+    public int copyAll(Files f) throws Exception {
+        // As CopyArtifact calls it
+        return f.copier instanceof FilePathCopyMethod
+                ? ((FilePathCopyMethod)f.copier).copyAll(f.srcDir, "**", null, f.targetDir)
+                : f.copier.copyAll(f.srcDir, "**", f.targetDir);
+    }
+
+    @Benchmark
+    public void copyOne(Files f) throws Exception {
+        f.copier.copyOne(f.source, f.targetFile);
+    }
+}
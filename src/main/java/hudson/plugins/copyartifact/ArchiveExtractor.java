@@ -0,0 +1,435 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Functions;
+import hudson.Util;
+import hudson.org.apache.tools.tar.TarInputStream;
+import hudson.os.PosixAPI;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOException2;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.tools.tar.TarEntry;
+
+/**
+ * Extracts zip and tar archive artifacts into the target directory as they are
+ * transferred, so the archive itself is never written to the target node.
+ * The archive is read as a stream, from the start, and entries are written out
+ * as they arrive.  Selected members of a zip archive are instead looked up in its
+ * central directory on the source node, so only those members are transferred.
+ * Links in tar archives are recreated, provided they point inside the target directory.
+ */
+final class ArchiveExtractor {
+    /** Patterns matching the archives which can be extracted. */
+    static final String PATTERNS = "**/*.zip,**/*.tar,**/*.tar.gz,**/*.tgz";
+
+    /** Separates the archive from the entries inside it in a filter, as in "bundle.zip!/config/**" */
+    static final String MEMBER_SEPARATOR = "!/";
+
+    private ArchiveExtractor() { }
+
+    /**
+     * Can the file with the given name be extracted?  Matches {@link #PATTERNS}.
+     */
+    static boolean isArchive(String name) {
+        return name.endsWith(".zip") || name.endsWith(".tar")
+            || name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    /**
+     * Take the patterns for members of archives out of a comma separated filter.
+     * @param members Receives the entry patterns for each archive pattern
+     * @return The remaining patterns, or null if there are none
+     */
+    static String splitMembers(String filter, Map<String,String> members) {
+        StringBuilder rest = new StringBuilder();
+        for (StringTokenizer tokens = new StringTokenizer(filter, ","); tokens.hasMoreTokens(); ) {
+            String token = tokens.nextToken().trim();
+            int i = token.indexOf(MEMBER_SEPARATOR);
+            if (i < 0) {
+                if (token.length() > 0) rest.append(rest.length() > 0 ? "," : "").append(token);
+                continue;
+            }
+            String archive = token.substring(0, i), entries = token.substring(i + 2);
+            if (entries.length() == 0) entries = "**";
+            String previous = members.get(archive);
+            members.put(archive, previous != null ? previous + "," + entries : entries);
+        }
+        return rest.length() > 0 ? rest.toString() : null;
+    }
+
+    /**
+     * Extract the matching members of an archive into the target directory.  Only the
+     * members of a zip archive are transferred; other archives are extracted from the
+     * whole stream as with {@link #extract(FilePath,String,FilePath,String)}.
+     * @return Number of files extracted
+     */
+    static int extractMembers(FilePath srcDir, String path, FilePath targetDir, String entries)
+            throws IOException, InterruptedException {
+        if (!path.endsWith(".zip")) return extract(srcDir, path, targetDir, entries);
+        FilePath archive = srcDir.child(path);
+        if (FileTransfer.isLocal(srcDir, targetDir))
+            return targetDir.act(new ExtractMembers(archive.getRemote(), entries));
+        if (!srcDir.isRemote()) {
+            Pipe pipe = Pipe.createLocalToRemote();
+            Future<Integer> future = targetDir.actAsync(new Extract(null, pipe, "members.zip", "**"));
+            try {
+                pack(new File(archive.getRemote()), entries, CopyScheduler.get().pace(pipe.getOut()));
+            } finally {
+                pipe.getOut().close();
+            }
+            return FileTransfer.get(future);
+        }
+        Pipe fromSource = Pipe.createRemoteToLocal();
+        Future<Integer> sent = archive.actAsync(new Pack(fromSource, entries));
+        InputStream in = CopyScheduler.get().pace(fromSource.getIn());
+        try {
+            if (!targetDir.isRemote()) {
+                int cnt = extract(in, "members.zip", new File(targetDir.getRemote()), "**");
+                FileTransfer.get(sent);
+                return cnt;
+            }
+            // Two different slaves: relay the members through this node.
+            Pipe toTarget = Pipe.createLocalToRemote();
+            Future<Integer> received = targetDir.actAsync(new Extract(null, toTarget, "members.zip", "**"));
+            try {
+                Util.copyStream(in, toTarget.getOut());
+            } finally {
+                toTarget.getOut().close();
+            }
+            FileTransfer.get(sent);
+            return FileTransfer.get(received);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the matching members of a zip archive to a stream, as a zip archive of
+     * their own.  Members are found in the central directory, so the rest of the
+     * archive is not read.
+     * @return Number of members written
+     */
+    static int pack(File archive, String entries, OutputStream out) throws IOException {
+        GlobMatcher matcher = compile(entries);
+        ZipFile zip = new ZipFile(archive);
+        try {
+            ZipOutputStream packed = new ZipOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            packed.setLevel(Deflater.BEST_SPEED);
+            int cnt = 0;
+            for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements(); ) {
+                ZipEntry e = en.nextElement();
+                if (e.isDirectory() || !matcher.matches(e.getName().replace('\\', '/'))) continue;
+                ZipEntry member = new ZipEntry(e.getName());
+                member.setTime(e.getTime());
+                packed.putNextEntry(member);
+                InputStream in = zip.getInputStream(e);
+                try {
+                    Util.copyStream(in, packed);
+                } finally {
+                    in.close();
+                }
+                packed.closeEntry();
+                cnt++;
+            }
+            packed.finish();
+            packed.flush();
+            return cnt;
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static GlobMatcher compile(String entries) throws IOException {
+        GlobMatcher matcher = GlobMatcher.compile(entries);
+        if (matcher == null)
+            throw new IOException("Unsupported pattern for archive entries: " + entries);
+        return matcher;
+    }
+
+    /**
+     * Extract an archive into the target directory.
+     * @param path Path of the archive relative to srcDir
+     * @param entries Comma separated Ant GLOB patterns of the entries to extract
+     * @return Number of files extracted
+     */
+    static int extract(FilePath srcDir, String path, FilePath targetDir, String entries)
+            throws IOException, InterruptedException {
+        FilePath archive = srcDir.child(path);
+        if (FileTransfer.isLocal(srcDir, targetDir))
+            return targetDir.act(new Extract(archive.getRemote(), null, archive.getName(), entries));
+        InputStream in = CopyScheduler.get().pace(archive.read());
+        try {
+            if (!targetDir.isRemote())
+                return extract(in, archive.getName(), new File(targetDir.getRemote()), entries);
+            Pipe pipe = Pipe.createLocalToRemote();
+            Future<Integer> future = targetDir.actAsync(
+                    new Extract(null, pipe, archive.getName(), entries));
+            try {
+                Util.copyStream(in, pipe.getOut());
+            } finally {
+                pipe.getOut().close();
+            }
+            return FileTransfer.get(future);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Extract the matching entries of an archive read from a stream.
+     * @param name File name of the archive, which tells its format
+     */
+    static int extract(InputStream in, String name, File targetDir, String entries)
+            throws IOException {
+        GlobMatcher matcher = compile(entries);
+        int cnt = 0;
+        in = new BufferedInputStream(in, 64 * 1024);
+        if (name.endsWith(".zip")) {
+            ZipInputStream zip = new ZipInputStream(in);
+            for (ZipEntry e; (e = zip.getNextEntry()) != null; ) {
+                String path = e.getName().replace('\\', '/');
+                if (e.isDirectory() || !matcher.matches(path)) continue;
+                write(zip, targetDir, path, e.getTime(), -1);
+                cnt++;
+            }
+        } else {
+            if (!name.endsWith(".tar")) in = new GZIPInputStream(in);
+            TarInputStream tar = new TarInputStream(in);
+            for (TarEntry e; (e = tar.getNextEntry()) != null; ) {
+                String path = e.getName().replace('\\', '/');
+                if (e.isDirectory() || !matcher.matches(path)) continue;
+                byte flag = linkFlag(e);
+                if (flag == TarEntry.LF_SYMLINK)
+                    symlink(targetDir, path, e.getLinkName());
+                else if (flag == TarEntry.LF_LINK)
+                    link(targetDir, path, e.getLinkName());
+                else
+                    write(tar, targetDir, path, e.getModTime().getTime(), e.getMode() & 0777);
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    private static void write(InputStream in, File targetDir, String path, long lastModified,
+                              int mode) throws IOException {
+        File file = new File(targetDir, FileTransfer.checkPath(path));
+        file.getParentFile().mkdirs();
+        file.delete();  // In case it is a link to a file elsewhere
+        OutputStream out = new FileOutputStream(file);
+        try {
+            Util.copyStream(in, out);
+        } finally {
+            out.close();
+        }
+        FileTransfer.finish(file, lastModified, mode);
+    }
+
+    /**
+     * Recreate a symbolic link entry.  The link may only point within the target directory.
+     * @param target Target of the link, relative to the directory holding the link
+     */
+    private static void symlink(File targetDir, String path, String target) throws IOException {
+        File file = new File(targetDir, FileTransfer.checkPath(path));
+        // Resolve the target against the link's directory, where it must stay below targetDir
+        String dir = path.lastIndexOf('/') < 0 ? "" : path.substring(0, path.lastIndexOf('/') + 1);
+        FileTransfer.checkPath(target.startsWith("/") ? target : normalize(dir + target, path));
+        if (Functions.isWindows())
+            throw new IOException("Cannot extract symbolic link " + path + " on Windows");
+        file.getParentFile().mkdirs();
+        file.delete();
+        int result;
+        try {
+            result = PosixAPI.get().symlink(target, file.getPath());
+        } catch (RuntimeException ex) {
+            throw new IOException2("Failed to create symbolic link " + path + " -> " + target, ex);
+        }
+        if (result != 0)
+            throw new IOException("Failed to create symbolic link " + path + " -> " + target);
+    }
+
+    /**
+     * Recreate a hard link entry, as a link to or a copy of an entry extracted before it.
+     * @param target Path of the linked entry in the archive
+     */
+    private static void link(File targetDir, String path, String target) throws IOException {
+        File file = new File(targetDir, FileTransfer.checkPath(path)),
+             source = new File(targetDir, FileTransfer.checkPath(target));
+        if (!source.isFile())
+            throw new IOException("Cannot extract " + path + ": it is a hard link to " + target
+                                  + ", which was not extracted");
+        file.getParentFile().mkdirs();
+        file.delete();
+        if (!FileTransfer.link(source, file)) FileTransfer.copyFile(source, file);
+    }
+
+    /**
+     * Collapse "." and ".." segments of a relative path.
+     * @param entry Entry the path comes from, for the error message
+     */
+    private static String normalize(String path, String entry) throws IOException {
+        List<String> segments = new ArrayList<String>();
+        for (String segment : path.split("/")) {
+            if (segment.length() == 0 || segment.equals(".")) continue;
+            if (!segment.equals("..")) {
+                segments.add(segment);
+            } else if (segments.isEmpty()) {
+                throw new IOException("Link " + entry + " points outside the target directory");
+            } else {
+                segments.remove(segments.size() - 1);
+            }
+        }
+        return Util.join(segments, "/");
+    }
+
+    /**
+     * Type of a tar entry, which TarEntry does not expose; read as FilePath does.
+     */
+    private static byte linkFlag(TarEntry e) throws IOException {
+        try {
+            return LINKFLAG_FIELD.getByte(e);
+        } catch (IllegalAccessException ex) {
+            throw new IOException2("Failed to read the type of tar entry " + e.getName(), ex);
+        }
+    }
+
+    private static final Field LINKFLAG_FIELD;
+    static {
+        try {
+            LINKFLAG_FIELD = TarEntry.class.getDeclaredField("linkFlag");
+            LINKFLAG_FIELD.setAccessible(true);
+        } catch (NoSuchFieldException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private static final class Pack implements FileCallable<Integer> {
+        private final Pipe pipe;
+        private final String entries;
+
+        Pack(Pipe pipe, String entries) {
+            this.pipe = pipe;
+            this.entries = entries;
+        }
+
+        public Integer invoke(File archive, VirtualChannel channel) throws IOException {
+            try {
+                return pack(archive, entries, pipe.getOut());
+            } finally {
+                pipe.getOut().close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class ExtractMembers implements FileCallable<Integer> {
+        private final String source, entries;
+
+        ExtractMembers(String source, String entries) {
+            this.source = source;
+            this.entries = entries;
+        }
+
+        public Integer invoke(File targetDir, VirtualChannel channel) throws IOException {
+            GlobMatcher matcher = compile(entries);
+            ZipFile zip = new ZipFile(source);
+            try {
+                int cnt = 0;
+                for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements(); ) {
+                    ZipEntry e = en.nextElement();
+                    String path = e.getName().replace('\\', '/');
+                    if (e.isDirectory() || !matcher.matches(path)) continue;
+                    InputStream in = zip.getInputStream(e);
+                    try {
+                        write(in, targetDir, path, e.getTime(), -1);
+                    } finally {
+                        in.close();
+                    }
+                    cnt++;
+                }
+                return cnt;
+            } finally {
+                zip.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Extract implements FileCallable<Integer> {
+        /** Path of the archive on this node, or null to read it from the pipe */
+        private final String source;
+        private final Pipe pipe;
+        private final String name, entries;
+
+        Extract(String source, Pipe pipe, String name, String entries) {
+            this.source = source;
+            this.pipe = pipe;
+            this.name = name;
+            this.entries = entries;
+        }
+
+        public Integer invoke(File targetDir, VirtualChannel channel) throws IOException {
+            InputStream in = source != null ? new FileInputStream(source) : pipe.getIn();
+            try {
+                int cnt = extract(in, name, targetDir, entries);
+                if (pipe != null) {
+                    // Read past the end of the archive so the sender is not left blocked
+                    byte[] buf = new byte[8192];
+                    while (in.read(buf) >= 0) ;
+                }
+                return cnt;
+            } finally {
+                in.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
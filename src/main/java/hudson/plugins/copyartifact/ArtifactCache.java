@@ -0,0 +1,611 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Cache of artifacts kept on each slave, so copying the same files to a slave again
+ * only pulls the files it does not have yet.
+ * Files are stored once per content hash under <tt>copyartifact-cache/objects</tt> in the
+ * slave's root directory.  An index per source job and build number maps relative paths
+ * to content hashes, with the size and timestamp of the file that was hashed.  The least recently used files are removed when the cache grows
+ * beyond the size set in the global configuration.
+ */
+final class ArtifactCache {
+
+    /**
+     * Hardlink cached files into the workspace instead of copying them.  Faster, but
+     * then a build modifying a copied file in place would also modify the cached file.
+     */
+    public static boolean HARDLINK = Boolean.getBoolean(ArtifactCache.class.getName() + ".hardlink");
+
+    private static final String DIR_NAME = "copyartifact-cache";
+
+    /** Hashes of artifacts on the master, by path, size and timestamp. */
+    private static final Map<String,String> HASHES = new LinkedHashMap<String,String>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+            return size() > 50000;
+        }
+    };
+
+    private final String node;
+    final FilePath root;
+    private final long maxSize;
+
+    private ArtifactCache(String node, FilePath root, long maxSize) {
+        this.node = node;
+        this.root = root;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the cache for the slave where the given directory resides.
+     * @return Cache, or null if the cache is disabled or the directory is on the master
+     */
+    static ArtifactCache get(FilePath targetDir) {
+        if (!targetDir.isRemote()) return null;
+        for (Computer c : Hudson.getInstance().getComputers())
+            if (c.getChannel() == targetDir.getChannel()) return get(c.getNode());
+        return null;
+    }
+
+    /**
+     * Get the cache for the given slave.
+     * @return Cache, or null if the cache is disabled, the node is the master or is offline
+     */
+    static ArtifactCache get(Node node) {
+        long maxSize = Hudson.getInstance().getDescriptorByType(CopyArtifact.DescriptorImpl.class)
+                .getCacheSize() * 1024L * 1024L;
+        if (maxSize <= 0 || node == null || node == Hudson.getInstance()) return null;
+        FilePath nodeRoot = node.getRootPath();
+        return nodeRoot != null ? new ArtifactCache(node.getNodeName(), nodeRoot.child(DIR_NAME), maxSize) : null;
+    }
+
+    /**
+     * Copy artifacts of the given build, using files from the cache where possible.
+     * Files not in the cache are copied from the cache of another slave that has them,
+     * else with the given method.  They are copied into a staging directory in the
+     * cache, added to the cache from there and then copied into the target directory.
+     * @param excludes Ant GLOB pattern of files to leave out, or null
+     * @param console Receives a note if files are copied from another slave
+     * @return Number of files that were copied
+     */
+    int copy(Run<?,?> run, FilePath srcDir, String filter, String excludes, FilePath targetDir,
+             CopyMethod copier, PrintStream console) throws IOException, InterruptedException {
+        String job = run.getParent().getFullName();
+        int number = run.getNumber();
+        Map<String,CachedFile> index = root.act(new Lookup(job, number));
+        List<FileTransfer.Entry> files = FileTransfer.list(srcDir, filter, excludes, false);
+        List<CachedFile> cached = describe(srcDir, files, index);
+        Set<String> missing = new HashSet<String>(
+                root.act(new Materialize(job, number, cached, targetDir.getRemote(), HARDLINK)));
+        if (!missing.isEmpty()) {
+            List<CachedFile> added = new ArrayList<CachedFile>(missing.size());
+            for (CachedFile file : cached)
+                if (missing.contains(file.path)) added.add(file);
+            FilePath staging = createStaging("copy");
+            try {
+                // Where the master would have to stream the files, another slave may have them
+                Set<String> remaining = new HashSet<String>(missing);
+                if (!FileTransfer.isLocal(srcDir, targetDir))
+                    remaining.removeAll(PeerTransfer.copy(run, added, node, staging, console));
+                List<FileTransfer.Entry> toCopy = new ArrayList<FileTransfer.Entry>(remaining.size());
+                for (FileTransfer.Entry entry : files)
+                    if (remaining.contains(entry.path)) toCopy.add(entry);
+                if (!toCopy.isEmpty()) transfer(copier, srcDir, toCopy, staging);
+                root.act(new Ingest(added, staging.getRemote(), targetDir.getRemote(), HARDLINK,
+                                    maxSize));
+            } finally {
+                staging.deleteRecursive();
+            }
+        }
+        PeerTransfer.record(run, node);
+        return files.size();
+    }
+
+    /**
+     * Copy files with the given method, which may be one from another plugin.
+     */
+    private static void transfer(CopyMethod copier, FilePath srcDir, List<FileTransfer.Entry> files,
+            FilePath targetDir) throws IOException, InterruptedException {
+        if (copier instanceof FilePathCopyMethod) {
+            ((FilePathCopyMethod)copier).send(srcDir, files, targetDir);
+            return;
+        }
+        CopyStatsAction.Record.sending(files);
+        for (FileTransfer.Entry file : files) {
+            FilePath target = targetDir.child(file.path);
+            target.getParent().mkdirs();
+            copier.copyOne(srcDir.child(file.path), target);
+        }
+    }
+
+    /**
+     * Add artifacts of the given build to the cache ahead of any copy, so a later copy
+     * to this slave finds them there.  Files are sent to a staging directory in the
+     * cache and moved into the cache from there.
+     * @param files Files to add, listed under the artifacts directory of the build
+     * @param cached The same files with their hashes, from {@link #describe(FilePath,List)}
+     * @return Number of files that were sent
+     */
+    int prefetch(Run<?,?> run, FilePath srcDir, List<FileTransfer.Entry> files,
+                 List<CachedFile> cached) throws IOException, InterruptedException {
+        String job = run.getParent().getFullName();
+        int number = run.getNumber();
+        Set<String> missing = new HashSet<String>(root.act(new Missing(job, number, cached)));
+        if (missing.isEmpty()) {
+            PeerTransfer.record(run, node);
+            return 0;
+        }
+
+        List<FileTransfer.Entry> toCopy = new ArrayList<FileTransfer.Entry>(missing.size());
+        for (FileTransfer.Entry entry : files)
+            if (missing.contains(entry.path)) toCopy.add(entry);
+        List<CachedFile> added = new ArrayList<CachedFile>(missing.size());
+        for (CachedFile file : cached)
+            if (missing.contains(file.path)) added.add(file);
+        FilePath staging = createStaging("prefetch");
+        try {
+            FileTransfer.copy(srcDir, toCopy, staging);
+            root.act(new Ingest(added, staging.getRemote(), null, false, maxSize));
+            PeerTransfer.record(run, node);
+        } finally {
+            staging.deleteRecursive();
+        }
+        return toCopy.size();
+    }
+
+    private FilePath createStaging(String prefix) throws IOException, InterruptedException {
+        FilePath incoming = root.child("incoming");
+        incoming.mkdirs();
+        return incoming.createTempDir(prefix, ".dir");
+    }
+
+    /**
+     * Hash the given files.
+     */
+    static List<CachedFile> describe(FilePath srcDir, List<FileTransfer.Entry> files)
+            throws IOException {
+        return describe(srcDir, files, Collections.<String,CachedFile>emptyMap());
+    }
+
+    /**
+     * Hash the given files, using hashes already in the cache index where available.
+     * A hash from the index is only used if the file still has the size and timestamp
+     * it had when hashed, as the index may be of an earlier job of the same name.
+     */
+    private static List<CachedFile> describe(FilePath srcDir, List<FileTransfer.Entry> files,
+            Map<String,CachedFile> index) throws IOException {
+        File baseDir = new File(srcDir.getRemote());
+        List<CachedFile> cached = new ArrayList<CachedFile>(files.size());
+        for (FileTransfer.Entry entry : files) {
+            File file = new File(baseDir, entry.path);
+            long size = file.length(), lastModified = file.lastModified();
+            CachedFile known = index.get(entry.path);
+            String hash = known != null && known.size == size && known.lastModified == lastModified
+                        ? known.hash : hash(file);
+            cached.add(new CachedFile(entry.path, hash, size, lastModified));
+        }
+        return cached;
+    }
+
+    private static String hash(File file) throws IOException {
+        String key = file.getPath() + ':' + file.length() + ':' + file.lastModified();
+        synchronized (HASHES) {
+            String hash = HASHES.get(key);
+            if (hash != null) return hash;
+        }
+        String hash = digest(file);
+        synchronized (HASHES) {
+            HASHES.put(key, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Hash of the content of the given file, as kept in the cache.
+     */
+    static String digest(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return Util.getDigestOf(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static final class CachedFile implements Serializable {
+        final String path, hash;
+        final long size, lastModified;
+
+        CachedFile(String path, String hash, long size, long lastModified) {
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Files in the cache directory on the slave.  Several builds on one slave may use
+     * the cache at once, so the index and access times are only used while synchronized
+     * on the class.  Objects are copied without the lock: each object appears in one step,
+     * by renaming a temporary file, and a copy out of the cache falls back to copying from
+     * the source if the object is evicted meanwhile.
+     */
+    static final class Store {
+        /** Indexes kept per source job, for the builds copied most recently. */
+        private static final int MAX_INDEXES = 10;
+
+        private static final String TMP_SUFFIX = ".tmp";
+
+        private final File dir;
+
+        Store(File dir) {
+            this.dir = dir;
+        }
+
+        File object(String hash) {
+            return new File(dir, "objects/" + hash.substring(0, 2) + '/' + hash);
+        }
+
+        /**
+         * Index of the given build, in a directory named by a digest of the job's full name,
+         * as any mapping of names to file names others can read may map two jobs to one.
+         */
+        File index(String job, int number) {
+            return new File(dir, "index/" + Util.getDigestOf(job) + '/' + number);
+        }
+
+        /**
+         * Read an index, with lines of hash, size, timestamp and path separated by spaces.
+         * Lines in any other format are skipped.
+         */
+        Map<String,CachedFile> readIndex(String job, int number) throws IOException {
+            Map<String,CachedFile> result = new HashMap<String,CachedFile>();
+            File file = index(job, number);
+            if (!file.exists()) return result;
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                for (String line; (line = in.readLine()) != null; ) {
+                    String[] fields = line.split(" ", 4);
+                    if (fields.length < 4) continue;
+                    try {
+                        result.put(fields[3], new CachedFile(fields[3], fields[0],
+                                Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                    } catch (NumberFormatException ex) {
+                        // Not written by this version
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return result;
+        }
+
+        void writeIndex(String job, int number, List<CachedFile> files) throws IOException {
+            Map<String,CachedFile> entries = readIndex(job, number);
+            for (CachedFile file : files) entries.put(file.path, file);
+            File file = index(job, number);
+            file.getParentFile().mkdirs();
+            PrintWriter out = new PrintWriter(new FileWriter(file));
+            try {
+                for (CachedFile entry : entries.values())
+                    out.println(entry.hash + ' ' + entry.size + ' ' + entry.lastModified + ' '
+                                + entry.path);
+            } finally {
+                out.close();
+            }
+            // Indexes only save hashing files again, so keep those of recent builds
+            File[] indexes = file.getParentFile().listFiles();
+            if (indexes == null || indexes.length <= MAX_INDEXES) return;
+            Arrays.sort(indexes, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return Long.valueOf(b.lastModified()).compareTo(a.lastModified());
+                }
+            });
+            for (int i = MAX_INDEXES; i < indexes.length; i++) indexes[i].delete();
+        }
+
+        /**
+         * Add a file to the cache, unless it is there already.
+         * Needs no lock, as the object appears in one step.
+         */
+        void add(File source, String hash) throws IOException {
+            File object = object(hash);
+            if (object.isFile()) return;
+            object.getParentFile().mkdirs();
+            File tmp = new File(object.getParentFile(), hash + '.' + UUID.randomUUID() + TMP_SUFFIX);
+            // A link costs no copy, and the source is a private staging file
+            if (!FileTransfer.link(source, tmp)) FileTransfer.copyFile(source, tmp);
+            if (!tmp.renameTo(object)) tmp.delete();
+        }
+
+        /** Last use of each cached file, by hash. */
+        Properties readAccess() throws IOException {
+            Properties access = new Properties();
+            File file = new File(dir, "access.properties");
+            if (file.exists()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    access.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            return access;
+        }
+
+        void writeAccess(Properties access) throws IOException {
+            dir.mkdirs();
+            OutputStream out = new FileOutputStream(new File(dir, "access.properties"));
+            try {
+                access.store(out, null);
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Remove least recently used files until the cache fits in the given size,
+         * and indexes last used before any file that is left.  Files without an access
+         * time, as left by an interrupted copy, are removed first.
+         */
+        void evict(Properties access, long maxSize) {
+            List<String> hashes = new ArrayList<String>();
+            final Map<String,Long> used = new HashMap<String,Long>();
+            long total = 0;
+            File[] dirs = new File(dir, "objects").listFiles();
+            if (dirs != null) for (File d : dirs) {
+                File[] objects = d.listFiles();
+                if (objects != null) for (File object : objects) {
+                    String hash = object.getName();
+                    if (hash.endsWith(TMP_SUFFIX)) continue;  // Being added
+                    String time = access.getProperty(hash);
+                    hashes.add(hash);
+                    used.put(hash, time != null ? Long.valueOf(time) : Long.valueOf(0));
+                    total += object.length();
+                }
+            }
+            access.keySet().retainAll(used.keySet());
+            Collections.sort(hashes, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return used.get(a).compareTo(used.get(b));
+                }
+            });
+            int evicted = 0;
+            for (String hash : hashes) {
+                if (total <= maxSize) break;
+                File object = object(hash);
+                total -= object.length();
+                object.delete();
+                access.remove(hash);
+                evicted++;
+            }
+            if (evicted == 0) return;
+            long oldest = evicted < hashes.size() ? used.get(hashes.get(evicted)) : Long.MAX_VALUE;
+            File[] jobs = new File(dir, "index").listFiles();
+            if (jobs != null) for (File job : jobs) {
+                File[] indexes = job.listFiles();
+                if (indexes != null) for (File index : indexes)
+                    if (index.lastModified() < oldest) index.delete();
+                job.delete();  // If now empty
+            }
+        }
+    }
+
+    /**
+     * Copy a file out of the cache, or out of a staging directory.
+     */
+    private static void place(File source, File target, long lastModified, boolean hardlink)
+            throws IOException {
+        target.getParentFile().mkdirs();
+        target.delete();
+        if (hardlink && FileTransfer.link(source, target)) return;
+        FileTransfer.copyFile(source, target);
+        target.setLastModified(lastModified);
+    }
+
+    private static final class Lookup implements FileCallable<Map<String,CachedFile>> {
+        private final String job;
+        private final int number;
+
+        Lookup(String job, int number) {
+            this.job = job;
+            this.number = number;
+        }
+
+        public Map<String,CachedFile> invoke(File dir, VirtualChannel channel) throws IOException {
+            synchronized (Store.class) {
+                return new Store(dir).readIndex(job, number);
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Copy files that are in the cache into the target directory.
+     * Returns paths of the files that are not in the cache.
+     */
+    private static final class Materialize implements FileCallable<List<String>> {
+        private final String job;
+        private final int number;
+        private final List<CachedFile> files;
+        private final String targetDir;
+        private final boolean hardlink;
+
+        Materialize(String job, int number, List<CachedFile> files, String targetDir,
+                    boolean hardlink) {
+            this.job = job;
+            this.number = number;
+            this.files = files;
+            this.targetDir = targetDir;
+            this.hardlink = hardlink;
+        }
+
+        public List<String> invoke(File dir, VirtualChannel channel) throws IOException {
+            List<String> missing = new ArrayList<String>();
+            List<CachedFile> present = new ArrayList<CachedFile>();
+            Store store = new Store(dir);
+            synchronized (Store.class) {
+                // Mark the files as used first, so they are the last to be evicted
+                Properties access = store.readAccess();
+                String now = String.valueOf(System.currentTimeMillis());
+                for (CachedFile file : files) {
+                    File object = store.object(file.hash);
+                    if (!object.isFile() || object.length() != file.size) {
+                        missing.add(file.path);
+                    } else {
+                        present.add(file);
+                        access.setProperty(file.hash, now);
+                    }
+                }
+                store.writeIndex(job, number, files);
+                store.writeAccess(access);
+            }
+            for (CachedFile file : present) {
+                try {
+                    place(store.object(file.hash), new File(targetDir, FileTransfer.checkPath(file.path)),
+                          file.lastModified, hardlink);
+                } catch (FileNotFoundException ex) {
+                    missing.add(file.path);  // Evicted meanwhile
+                }
+            }
+            return missing;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Record files in the index without copying them anywhere.
+     * Returns paths of the files that are not in the cache.
+     */
+    private static final class Missing implements FileCallable<List<String>> {
+        private final String job;
+        private final int number;
+        private final List<CachedFile> files;
+
+        Missing(String job, int number, List<CachedFile> files) {
+            this.job = job;
+            this.number = number;
+            this.files = files;
+        }
+
+        public List<String> invoke(File dir, VirtualChannel channel) throws IOException {
+            List<String> missing = new ArrayList<String>();
+            synchronized (Store.class) {
+                Store store = new Store(dir);
+                for (CachedFile file : files) {
+                    File object = store.object(file.hash);
+                    if (!object.isFile() || object.length() != file.size) missing.add(file.path);
+                }
+                store.writeIndex(job, number, files);
+            }
+            return missing;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Add files just copied into a staging directory to the cache, and copy them
+     * into the target directory.
+     */
+    private static final class Ingest implements FileCallable<Void> {
+        private final List<CachedFile> files;
+        private final String stagingDir, targetDir;
+        private final boolean hardlink;
+        private final long maxSize;
+
+        /**
+         * @param targetDir Directory to copy the files into, or null
+         */
+        Ingest(List<CachedFile> files, String stagingDir, String targetDir, boolean hardlink,
+               long maxSize) {
+            this.files = files;
+            this.stagingDir = stagingDir;
+            this.targetDir = targetDir;
+            this.hardlink = hardlink;
+            this.maxSize = maxSize;
+        }
+
+        public Void invoke(File dir, VirtualChannel channel) throws IOException {
+            Store store = new Store(dir);
+            for (CachedFile file : files) {
+                File staged = new File(stagingDir, FileTransfer.checkPath(file.path));
+                store.add(staged, file.hash);
+                if (targetDir != null)
+                    place(staged, new File(targetDir, file.path), file.lastModified, hardlink);
+            }
+            synchronized (Store.class) {
+                Properties access = store.readAccess();
+                String now = String.valueOf(System.currentTimeMillis());
+                for (CachedFile file : files) access.setProperty(file.hash, now);
+                store.evict(access, maxSize);
+                store.writeAccess(access);
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
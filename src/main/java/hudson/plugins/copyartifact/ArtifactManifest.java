@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * List of the artifacts of a completed build, written when the build completes, so
+ * a copy can find the files matching its filter without walking the artifacts
+ * directory again.  Artifacts of a build do not change once it is complete.
+ * Read by the copies which list their files before sending them: parallel,
+ * incremental, flattened, linked and cached copies.  A default copy of all matching
+ * files goes through {@link hudson.FilePath#copyRecursiveTo}, which scans the directory.
+ * The manifest is a binary file in the build directory: a header with the
+ * timestamps of the artifacts directory and each directory below it, so a file
+ * added or deleted anywhere makes the manifest stale, then the sorted paths, each
+ * stored as the length of the prefix it shares with the previous path and the rest,
+ * with the size, timestamp and optionally the MD5 of each file.
+ */
+final class ArtifactManifest {
+    private static final String FILE_NAME = "copyartifact-manifest";
+    private static final int MAGIC = 0x43414d32, MD5_LENGTH = 16;
+
+    /** Computes checksums for manifests, away from the executor of the completed build. */
+    private static final ExecutorService CHECKSUMS =
+            Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+    private ArtifactManifest() { }
+
+    /**
+     * List the files of an artifacts directory matching the given patterns,
+     * from the manifest of its build.
+     * @param artifactsDir Artifacts directory of a build
+     * @param checksum Also get the MD5 of each file
+     * @return Matching files, or null if there is no usable manifest, in which case
+     *   the directory should be scanned
+     */
+    static List<FileTransfer.Entry> list(File artifactsDir, String filter, String excludes,
+                                         boolean checksum) throws IOException {
+        File file = new File(artifactsDir.getParentFile(), FILE_NAME);
+        if (!file.isFile() || !artifactsDir.getName().equals("archive")) return null;
+        GlobMatcher matcher = GlobMatcher.compile(filter, excludes);
+        if (matcher == null) return null;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) return null;
+            for (int i = in.readInt(); i > 0; i--) {
+                String dir = in.readUTF();
+                if (in.readLong() != new File(artifactsDir, dir).lastModified()) return null;
+            }
+            int count = in.readInt();
+            boolean hashes = in.readBoolean();
+            if (checksum && !hashes) return null;
+            List<FileTransfer.Entry> result = new ArrayList<FileTransfer.Entry>();
+            byte[] md5 = new byte[MD5_LENGTH];
+            String path = "";
+            for (int i = 0; i < count; i++) {
+                path = path.substring(0, in.readUnsignedShort()) + in.readUTF();
+                long size = in.readLong(), lastModified = in.readLong();
+                if (hashes) in.readFully(md5);
+                if (matcher.matches(path))
+                    result.add(new FileTransfer.Entry(path, size, lastModified,
+                                                      checksum ? Util.toHexString(md5) : null));
+            }
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the manifest for the given artifacts directory.
+     * @param checksum Also record the MD5 of each file
+     */
+    static void write(File artifactsDir, boolean checksum) throws IOException {
+        List<String> paths = new ArrayList<String>(), dirs = new ArrayList<String>();
+        dirs.add("");
+        collect(artifactsDir, "", paths, dirs);
+        Collections.sort(paths);
+        File file = new File(artifactsDir.getParentFile(), FILE_NAME),
+             tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(dirs.size());
+            for (String dir : dirs) {
+                out.writeUTF(dir);
+                out.writeLong(new File(artifactsDir, dir).lastModified());
+            }
+            out.writeInt(paths.size());
+            out.writeBoolean(checksum);
+            String previous = "";
+            for (String path : paths) {
+                FileTransfer.Entry entry = FileTransfer.stat(artifactsDir, path, checksum);
+                int common = 0, max = Math.min(Math.min(previous.length(), path.length()), 0xffff);
+                while (common < max && previous.charAt(common) == path.charAt(common)) common++;
+                out.writeShort(common);
+                out.writeUTF(path.substring(common));
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                if (checksum)
+                    for (int i = 0; i < MD5_LENGTH; i++)
+                        out.writeByte(Integer.parseInt(entry.hash.substring(2 * i, 2 * i + 2), 16));
+                previous = path;
+            }
+        } finally {
+            out.close();
+        }
+        // Replace any existing manifest in one step, so a copy never reads half of one
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+    private static void collect(File dir, String prefix, List<String> paths, List<String> dirs) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                String path = prefix + child.getName();
+                dirs.add(path);
+                collect(child, path + '/', paths, dirs);
+            } else if (child.isFile()) {
+                paths.add(prefix + child.getName());
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest of each build with artifacts as it completes.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run> {
+        public RunListenerImpl() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(final Run r, TaskListener listener) {
+            final File artifactsDir = r.getArtifactsDir();
+            if (!artifactsDir.isDirectory()) return;
+            try {
+                write(artifactsDir, false);
+            } catch (IOException ex) {
+                // Copies from this build will scan the artifacts instead
+                LOGGER.log(Level.WARNING, "Failed to write artifact manifest of " + r.getFullDisplayName(), ex);
+                return;
+            }
+            if (!Hudson.getInstance().getDescriptorByType(CopyArtifact.DescriptorImpl.class)
+                    .isIncrementalChecksum()) return;
+            // Reading every artifact takes a while, so add checksums in the background;
+            // until then copies wanting checksums scan the artifacts
+            final String name = r.getFullDisplayName();
+            CHECKSUMS.submit(new Runnable() {
+                public void run() {
+                    try {
+                        write(artifactsDir, true);
+                    } catch (IOException ex) {
+                        LOGGER.log(Level.WARNING, "Failed to add checksums to artifact manifest of " + name, ex);
+                    }
+                }
+            });
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ArtifactManifest.class.getName());
+}
@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Pushes the artifacts of a completed build into the {@link ArtifactCache} of slaves
+ * where projects copying from it built recently, so their next copy finds the files
+ * already there.  Enabled in the global configuration.
+ */
+final class ArtifactPrefetcher {
+
+    /**
+     * Number of recent builds of each consuming project whose slaves receive artifacts.
+     */
+    public static int RECENT_BUILDS =
+            Integer.getInteger(ArtifactPrefetcher.class.getName() + ".recentBuilds", 3);
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newFixedThreadPool(2, new DaemonThreadFactory());
+
+    private ArtifactPrefetcher() { }
+
+    /**
+     * Push the artifacts of the given build to slaves of the projects copying from it,
+     * where their next copy would select this build.
+     */
+    static void prefetch(Run<?,?> run) {
+        Job<?,?> job = run.getParent();
+        String source = job.getFullName();
+        // Filters to prefetch with, by slave
+        Map<Node,Set<String>> targets = new LinkedHashMap<Node,Set<String>>();
+        for (AbstractProject<?,?> project : ConsumerIndex.getConsumers(source)) {
+            for (CopyArtifact ca : CopyArtifact.ListenerImpl.getCopiers(project)) {
+                BuildSelector selector = ca.getBuildSelector();
+                if (!ca.getProjectName().equals(source) || isParameterized(selector))
+                    continue;
+                Run<?,?> selected;
+                try {
+                    selected = SelectionCache.getBuild(selector, job, new EnvVars());
+                } catch (RuntimeException ex) {
+                    // Skip this consumer only, the others may still want the artifacts
+                    LOGGER.log(Level.WARNING, "Failed to find the build " + project.getFullName()
+                               + " would copy from " + source, ex);
+                    continue;
+                }
+                if (selected == null || selected.getNumber() != run.getNumber())
+                    continue;
+                String filter = ca.getFilter();
+                if (filter == null || filter.trim().length() == 0 || filter.indexOf('$') >= 0)
+                    filter = "**";
+                int count = 0;
+                for (AbstractBuild<?,?> b = project.getLastBuild(); b != null && count < RECENT_BUILDS;
+                        b = b.getPreviousBuild(), count++) {
+                    Node node = b.getBuiltOn();
+                    if (node == null || !isReady(node)) continue;
+                    Set<String> filters = targets.get(node);
+                    if (filters == null) targets.put(node, filters = new LinkedHashSet<String>());
+                    filters.add(filter);
+                }
+            }
+        }
+        if (targets.isEmpty()) return;
+
+        // List and hash only the artifacts some slave wants, once, then send each slave
+        // the ones its filters match
+        Set<String> union = new LinkedHashSet<String>();
+        for (Set<String> filters : targets.values()) union.addAll(filters);
+        FilePath srcDir = new FilePath(run.getArtifactsDir());
+        List<FileTransfer.Entry> files;
+        List<ArtifactCache.CachedFile> hashed;
+        try {
+            if (!srcDir.exists()) return;
+            files = FileTransfer.list(srcDir, union.contains("**") ? "**" : Util.join(union, ","));
+            if (files.isEmpty()) return;
+            hashed = ArtifactCache.describe(srcDir, files);
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "Failed to list artifacts of " + run.getFullDisplayName(), ex);
+            return;
+        }
+        for (Map.Entry<Node,Set<String>> target : targets.entrySet()) {
+            ArtifactCache cache = ArtifactCache.get(target.getKey());
+            if (cache == null) continue;  // Gone offline meanwhile
+            GlobMatcher matcher = GlobMatcher.compile(Util.join(target.getValue(), ","));
+            List<FileTransfer.Entry> selected = new ArrayList<FileTransfer.Entry>();
+            List<ArtifactCache.CachedFile> selectedHashes = new ArrayList<ArtifactCache.CachedFile>();
+            for (int i = 0; i < files.size(); i++) {
+                // Patterns GlobMatcher does not support get all files listed for any slave
+                if (matcher != null && !matcher.matches(files.get(i).path)) continue;
+                selected.add(files.get(i));
+                selectedHashes.add(hashed.get(i));
+            }
+            if (selected.isEmpty()) continue;
+            try {
+                CopyScheduler.Slot slot = CopyScheduler.get().acquire(source, null);
+                try {
+                    cache.prefetch(run, srcDir, selected, selectedHashes);
+                } finally {
+                    CopyScheduler.get().release(slot);
+                }
+            } catch (Exception ex) {
+                LOGGER.log(Level.WARNING, "Failed to prefetch artifacts of " + run.getFullDisplayName()
+                           + " to " + target.getKey().getNodeName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Does the selector depend on parameters of the consuming build?  Such selections
+     * cannot be foreseen.
+     */
+    private static boolean isParameterized(BuildSelector selector) {
+        return selector instanceof WorkspaceSelector || selector instanceof ParameterizedBuildSelector
+            || (selector instanceof SpecificBuildSelector
+                && ((SpecificBuildSelector)selector).getBuildNumber().indexOf('$') >= 0);
+    }
+
+    /**
+     * Is the node online with a cache to prefetch into?
+     */
+    private static boolean isReady(Node node) {
+        Computer computer = node.toComputer();
+        return computer != null && computer.isOnline() && ArtifactCache.get(node) != null;
+    }
+
+    /**
+     * Starts prefetching when a build completes, without holding up the build.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run> {
+        public RunListenerImpl() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            final Run<?,?> run = r;
+            CopyArtifact.DescriptorImpl d =
+                    Hudson.getInstance().getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+            if (!d.isPrefetch() || d.getCacheSize() <= 0 || run.getResult() == null
+                    || run.getResult().isWorseThan(Result.UNSTABLE))
+                return;
+            EXECUTOR.submit(new Runnable() {
+                public void run() {
+                    // Find consuming projects whatever their permissions
+                    SecurityContext context = SecurityContextHolder.getContext();
+                    Authentication old = context.getAuthentication();
+                    context.setAuthentication(ACL.SYSTEM);
+                    try {
+                        prefetch(run);
+                    } catch (RuntimeException ex) {
+                        LOGGER.log(Level.WARNING, "Failed to prefetch artifacts of "
+                                   + run.getFullDisplayName(), ex);
+                    } finally {
+                        context.setAuthentication(old);
+                    }
+                }
+            });
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ArtifactPrefetcher.class.getName());
+}
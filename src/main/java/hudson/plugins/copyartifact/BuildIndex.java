@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Index of the latest stable, successful and saved build of each job, so a selector
+ * need not walk back through (and load) old builds to find one.  A job is indexed when
+ * first looked up, then kept up to date as its builds complete, are deleted or are
+ * marked to be kept.  Indexed builds are checked again when looked up.
+ */
+final class BuildIndex {
+
+    /** Kinds of build in the index. */
+    enum Kind {
+        /** Stable build */
+        STABLE {
+            boolean matches(Run<?,?> run) {
+                return run.getResult().isBetterOrEqualTo(Result.SUCCESS);
+            }
+        },
+        /** Stable or unstable build */
+        SUCCESSFUL {
+            boolean matches(Run<?,?> run) {
+                return run.getResult().isBetterOrEqualTo(Result.UNSTABLE);
+            }
+        },
+        /** Build marked "keep forever" */
+        SAVED {
+            boolean matches(Run<?,?> run) {
+                return run.isKeepLog();
+            }
+        };
+
+        abstract boolean matches(Run<?,?> run);
+    }
+
+    /** Build numbers meaning the job has not been indexed, or has no such build. */
+    private static final int UNKNOWN = 0, NONE = -1;
+
+    private static final Map<Job<?,?>,BuildIndex> INDEX = new WeakHashMap<Job<?,?>,BuildIndex>();
+
+    private final int[] numbers = new int[Kind.values().length];
+    /** Count of changes from listeners, to spot a change while walking through builds. */
+    private int changes;
+
+    private BuildIndex() { }
+
+    /**
+     * Find the latest completed build of the given kind.
+     * @return Build, or null if there is none
+     */
+    static Run<?,?> get(Job<?,?> job, Kind kind) {
+        int number, changes;
+        synchronized (INDEX) {
+            BuildIndex index = INDEX.get(job);
+            if (index == null) INDEX.put(job, index = new BuildIndex());
+            number = index.numbers[kind.ordinal()];
+            changes = index.changes;
+        }
+        if (number == NONE) return null;
+        if (number != UNKNOWN) {
+            Run<?,?> run = job.getBuildByNumber(number);
+            if (run != null && !run.isBuilding() && kind.matches(run)) return run;
+        }
+        // Not indexed yet, or the indexed build has changed since
+        Run<?,?> run = job.getLastCompletedBuild();
+        while (run != null && !kind.matches(run)) run = run.getPreviousCompletedBuild();
+        synchronized (INDEX) {
+            BuildIndex index = INDEX.get(job);
+            // A build may have completed meanwhile; if so, walk again next time
+            if (index != null && index.changes == changes)
+                index.numbers[kind.ordinal()] = run != null ? run.getNumber() : NONE;
+        }
+        return run;
+    }
+
+    /**
+     * Record a build of the given kind, if newer than the indexed one.
+     */
+    private void add(Kind kind, int number) {
+        changes++;
+        // Nothing to record until the job is indexed
+        if (numbers[kind.ordinal()] != UNKNOWN && number > numbers[kind.ordinal()])
+            numbers[kind.ordinal()] = number;
+    }
+
+    /**
+     * Forget the indexed build of the given kind if it is this one.
+     */
+    private void remove(Kind kind, int number) {
+        changes++;
+        if (numbers[kind.ordinal()] == number) numbers[kind.ordinal()] = UNKNOWN;
+    }
+
+    /**
+     * Records builds as they complete or are deleted.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run> {
+        public RunListenerImpl() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            Run<?,?> run = r;
+            synchronized (INDEX) {
+                BuildIndex index = INDEX.get(run.getParent());
+                if (index == null || run.getResult() == null) return;
+                for (Kind kind : Kind.values())
+                    if (kind.matches(run)) index.add(kind, run.getNumber());
+            }
+        }
+
+        @Override
+        public void onDeleted(Run r) {
+            Run<?,?> run = r;
+            synchronized (INDEX) {
+                BuildIndex index = INDEX.get(run.getParent());
+                if (index == null) return;
+                for (Kind kind : Kind.values())
+                    index.remove(kind, run.getNumber());
+            }
+        }
+    }
+
+    /**
+     * Records builds as they are marked to be kept, or no longer kept.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (!(o instanceof Run)) return;
+            Run<?,?> run = (Run<?,?>)o;
+            if (run.isBuilding()) return;
+            synchronized (INDEX) {
+                BuildIndex index = INDEX.get(run.getParent());
+                if (index == null) return;
+                if (run.isKeepLog())
+                    index.add(Kind.SAVED, run.getNumber());
+                else
+                    index.remove(Kind.SAVED, run.getNumber());
+            }
+        }
+    }
+}
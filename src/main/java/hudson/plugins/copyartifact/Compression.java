@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.jvnet.localizer.Localizable;
+
+/**
+ * How file content is compressed when artifacts are streamed between nodes.
+ * Files are compressed in blocks; a block that does not get smaller is sent as is.
+ */
+public enum Compression {
+    /** No compression, for fast networks where CPU time is the limit. */
+    NONE(Messages._Compression_NONE()) {
+        int compress(byte[] src, int len, byte[] dest, int level) {
+            return -1;
+        }
+
+        void decompress(byte[] src, int len, byte[] dest, int rawLen) throws IOException {
+            throw new IOException("Unexpected compressed block");
+        }
+    },
+    /** Deflate, as used by gzip, at a configurable level. */
+    GZIP(Messages._Compression_GZIP()) {
+        int compress(byte[] src, int len, byte[] dest, int level) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(src, 0, len);
+                deflater.finish();
+                int n = deflater.deflate(dest, 0, dest.length);
+                return deflater.finished() && n < len ? n : -1;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        void decompress(byte[] src, int len, byte[] dest, int rawLen) throws IOException {
+            Inflater inflater = new Inflater(true);
+            try {
+                // With nowrap an extra dummy byte may be needed at the end of the input
+                byte[] input = new byte[len + 1];
+                System.arraycopy(src, 0, input, 0, len);
+                inflater.setInput(input);
+                if (inflater.inflate(dest, 0, rawLen) != rawLen)
+                    throw new IOException("Corrupt compressed block");
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt compressed block: " + ex.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+    },
+    /**
+     * A simple LZ77 codec in the style of LZ4: far less CPU than deflate,
+     * at the cost of a lower compression ratio.
+     */
+    FAST(Messages._Compression_FAST()) {
+        int compress(byte[] src, int len, byte[] dest, int level) {
+            return Lz.compress(src, len, dest);
+        }
+
+        void decompress(byte[] src, int len, byte[] dest, int rawLen) throws IOException {
+            Lz.decompress(src, len, dest, rawLen);
+        }
+    };
+
+    /** Largest block of file content compressed at once. */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /** Extensions of files which are already compressed. */
+    private static final Set<String> COMPRESSED = new HashSet<String>(Arrays.asList(
+            "zip", "jar", "war", "ear", "hpi", "apk", "gz", "tgz", "bz2", "xz", "lzma", "7z",
+            "rar", "rpm", "deb", "dmg", "png", "jpg", "jpeg", "gif", "mp3", "mp4", "avi"));
+
+    private final Localizable displayName;
+
+    Compression(Localizable displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName.toString();
+    }
+
+    /**
+     * Compress a block.
+     * @param dest Buffer for the result, at least as large as the block
+     * @return Length of the compressed block, or -1 if it would not be smaller
+     */
+    abstract int compress(byte[] src, int len, byte[] dest, int level);
+
+    abstract void decompress(byte[] src, int len, byte[] dest, int rawLen) throws IOException;
+
+    /**
+     * Is a file with this name known to be compressed already?
+     */
+    static boolean isCompressed(String path) {
+        int i = path.lastIndexOf('.');
+        return i > path.lastIndexOf('/')
+            && COMPRESSED.contains(path.substring(i + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * The LZ77 codec for {@link #FAST}.  Each sequence is a token byte with the number
+     * of literals in the high and the match length in the low four bits, any further
+     * literal length bytes, the literals, a two byte offset and any further match
+     * length bytes.  The last sequence has only literals.
+     */
+    static final class Lz {
+        private static final int MIN_MATCH = 4, HASH_BITS = 12;
+
+        private Lz() { }
+
+        static int compress(byte[] src, int len, byte[] dest) {
+            int[] table = new int[1 << HASH_BITS];
+            Arrays.fill(table, -1);
+            int anchor = 0, op = 0;
+            for (int i = 0; i + MIN_MATCH < len; ) {
+                int h = hash(src, i), ref = table[h];
+                table[h] = i;
+                if (ref < 0 || i - ref >= 0x10000 || !same(src, ref, i)) {
+                    i++;
+                    continue;
+                }
+                int matchLen = MIN_MATCH;
+                while (i + matchLen < len && src[ref + matchLen] == src[i + matchLen]) matchLen++;
+                op = sequence(src, anchor, i - anchor, dest, op, i - ref, matchLen);
+                if (op < 0) return -1;
+                i += matchLen;
+                anchor = i;
+            }
+            op = sequence(src, anchor, len - anchor, dest, op, 0, 0);
+            return op < 0 || op >= len ? -1 : op;
+        }
+
+        private static int sequence(byte[] src, int start, int literals, byte[] dest, int op,
+                                    int offset, int matchLen) {
+            int match = offset > 0 ? matchLen - MIN_MATCH : 0;
+            int needed = 1 + extraLength(literals) + literals
+                       + (offset > 0 ? 2 + extraLength(match) : 0);
+            if (op + needed > dest.length) return -1;
+            dest[op++] = (byte)((Math.min(literals, 15) << 4) | Math.min(match, 15));
+            op = writeLength(literals, dest, op);
+            System.arraycopy(src, start, dest, op, literals);
+            op += literals;
+            if (offset > 0) {
+                dest[op++] = (byte)offset;
+                dest[op++] = (byte)(offset >>> 8);
+                op = writeLength(match, dest, op);
+            }
+            return op;
+        }
+
+        private static int extraLength(int n) {
+            return n < 15 ? 0 : (n - 15) / 255 + 1;
+        }
+
+        private static int writeLength(int n, byte[] dest, int op) {
+            if (n < 15) return op;
+            for (n -= 15; n >= 255; n -= 255) dest[op++] = (byte)255;
+            dest[op++] = (byte)n;
+            return op;
+        }
+
+        static void decompress(byte[] src, int len, byte[] dest, int rawLen) throws IOException {
+            try {
+                int ip = 0, op = 0;
+                while (true) {
+                    int token = src[ip++] & 0xff, b;
+                    int literals = token >>> 4;
+                    if (literals == 15) do { literals += b = src[ip++] & 0xff; } while (b == 255);
+                    System.arraycopy(src, ip, dest, op, literals);
+                    ip += literals;
+                    op += literals;
+                    if (op >= rawLen) break;
+                    int offset = (src[ip++] & 0xff) | ((src[ip++] & 0xff) << 8);
+                    int matchLen = token & 15;
+                    if (matchLen == 15) do { matchLen += b = src[ip++] & 0xff; } while (b == 255);
+                    matchLen += MIN_MATCH;
+                    // Byte by byte, as the match may overlap the bytes it produces
+                    for (int k = 0; k < matchLen; k++, op++) dest[op] = dest[op - offset];
+                }
+                if (ip != len || op != rawLen) throw new IOException("Corrupt compressed block");
+            } catch (IndexOutOfBoundsException ex) {
+                throw new IOException("Corrupt compressed block");
+            }
+        }
+
+        private static int hash(byte[] b, int i) {
+            int v = (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24;
+            return (v * -1640531535) >>> (32 - HASH_BITS);
+        }
+
+        private static boolean same(byte[] b, int i, int j) {
+            return b[i] == b[j] && b[i + 1] == b[j + 1] && b[i + 2] == b[j + 2] && b[i + 3] == b[j + 3];
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.TopLevelItem;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the projects with Copy Artifact steps by the project they copy from, so
+ * finding the consumers of a project does not need a scan of all projects.  Built by
+ * one scan when Hudson has loaded its projects, then kept up to date as projects are
+ * created, saved, renamed and deleted.  A copy is kept in
+ * <tt>copyartifact-consumers.xml</tt> in HUDSON_HOME, only used if the index is
+ * needed before projects are loaded, as configuration may change on disk meanwhile.
+ * Source project names are indexed as written in the steps, before any parameters
+ * are expanded.
+ */
+public final class ConsumerIndex {
+
+    private static ConsumerIndex instance;
+
+    /** Projects copied from, by the full name of each consuming project. */
+    private final Map<String,Set<String>> sources = new TreeMap<String,Set<String>>();
+
+    /** Consuming projects, by project copied from. */
+    private transient Map<String,Set<String>> consumers;
+
+    private ConsumerIndex() { }
+
+    /**
+     * Get the index, loading it or building it if needed.
+     */
+    static synchronized ConsumerIndex get() {
+        if (instance == null) {
+            XmlFile file = getConfigFile();
+            if (file.exists()) try {
+                instance = (ConsumerIndex)file.read();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file + ", rebuilding it", ex);
+            }
+            if (instance == null) instance = scan();
+            instance.consumers = null;
+        }
+        return instance;
+    }
+
+    /**
+     * Build the index again from the configuration of all projects.
+     */
+    static synchronized void rebuild() {
+        instance = scan();
+    }
+
+    private static ConsumerIndex scan() {
+        ConsumerIndex index = new ConsumerIndex();
+        for (AbstractProject<?,?> project : Hudson.getInstance().getAllItems(AbstractProject.class))
+            if (project instanceof TopLevelItem) {
+                Set<String> set = getSources(project);
+                if (!set.isEmpty()) index.sources.put(project.getFullName(), set);
+            }
+        index.save();
+        return index;
+    }
+
+    /**
+     * Find the projects with a Copy Artifact step copying from the given project.
+     * @param projectName Full name of the source project
+     */
+    public static List<AbstractProject<?,?>> getConsumers(String projectName) {
+        List<AbstractProject<?,?>> result = new ArrayList<AbstractProject<?,?>>();
+        for (String name : get().getConsumerNames(projectName, false)) {
+            AbstractProject<?,?> project = Hudson.getInstance().getItemByFullName(name, AbstractProject.class);
+            if (project != null) result.add(project);
+        }
+        return result;
+    }
+
+    /**
+     * Full names of the projects copying from the given project.
+     * @param nested Also include projects copying from items within it, like
+     *   "MatrixJobName/AxisName=value"
+     */
+    synchronized List<String> getConsumerNames(String projectName, boolean nested) {
+        if (consumers == null) {
+            consumers = new HashMap<String,Set<String>>();
+            for (Map.Entry<String,Set<String>> e : sources.entrySet())
+                for (String source : e.getValue()) addConsumer(source, e.getKey());
+        }
+        Set<String> result = new TreeSet<String>();
+        if (consumers.containsKey(projectName)) result.addAll(consumers.get(projectName));
+        if (nested) {
+            for (Map.Entry<String,Set<String>> e : consumers.entrySet())
+                if (e.getKey().startsWith(projectName + '/')) result.addAll(e.getValue());
+        }
+        return new ArrayList<String>(result);
+    }
+
+    private void addConsumer(String source, String consumer) {
+        Set<String> set = consumers.get(source);
+        if (set == null) consumers.put(source, set = new TreeSet<String>());
+        set.add(consumer);
+    }
+
+    private static Set<String> getSources(AbstractProject<?,?> project) {
+        Set<String> result = new TreeSet<String>();
+        for (CopyArtifact ca : CopyArtifact.ListenerImpl.getCopiers(project))
+            result.add(ca.getProjectName());
+        return result;
+    }
+
+    /**
+     * Index the given project again, as its steps may have changed.
+     */
+    synchronized void update(AbstractProject<?,?> project) {
+        Set<String> current = getSources(project), previous = sources.get(project.getFullName());
+        if (current.isEmpty() ? previous == null : current.equals(previous)) return;
+        if (current.isEmpty()) sources.remove(project.getFullName());
+        else sources.put(project.getFullName(), current);
+        consumers = null;
+        save();
+    }
+
+    synchronized void remove(String fullName) {
+        if (sources.remove(fullName) == null) return;
+        consumers = null;
+        save();
+    }
+
+    synchronized void rename(String oldFullName, String newFullName) {
+        Set<String> set = sources.remove(oldFullName);
+        if (set == null) return;
+        sources.put(newFullName, set);
+        consumers = null;
+        save();
+    }
+
+    private void save() {
+        try {
+            getConfigFile().write(this);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(), ex);
+        }
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(Hudson.XSTREAM,
+                new File(Hudson.getInstance().getRootDir(), "copyartifact-consumers.xml"));
+    }
+
+    /**
+     * Keeps the index up to date as projects are created, renamed and deleted.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            // Configuration may have been changed on disk, or changes missed
+            rebuild();
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            if (item instanceof AbstractProject && item instanceof TopLevelItem)
+                get().update((AbstractProject<?,?>)item);
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            onCreated(item);
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            String parent = item.getParent().getFullName();
+            get().rename(parent.length() > 0 ? parent + '/' + oldName : oldName, item.getFullName());
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            get().remove(item.getFullName());
+        }
+    }
+
+    /**
+     * Keeps the index up to date as project configurations are saved.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractProject && o instanceof TopLevelItem)
+                get().update((AbstractProject<?,?>)o);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ConsumerIndex.class.getName());
+}
@@ -37,6 +37,7 @@ import hudson.maven.MavenModuleSet;
 import hudson.maven.MavenModuleSetBuild;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.Build;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
@@ -53,24 +54,38 @@ import hudson.security.AccessControlled;
 import hudson.security.SecurityRealm;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.DescribableList;
 import hudson.util.FormValidation;
+import hudson.util.IOException2;
 import hudson.util.XStream2;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.sf.json.JSONObject;
 import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 /**
  * Build step to copy artifacts from another project.
@@ -79,14 +94,44 @@ import org.kohsuke.stapler.QueryParameter;
 public class CopyArtifact extends Builder {
 
     private String projectName;
-    private final String filter, target;
+    private final String filter, excludes, target, extractFilter;
     private /*almost final*/ BuildSelector selector;
     @Deprecated private transient Boolean stable;
-    private final Boolean flatten, optional;
+    private final Boolean flatten, optional, incremental, link, early, extract;
 
-    @DataBoundConstructor
     public CopyArtifact(String projectName, BuildSelector selector, String filter, String target,
                         boolean flatten, boolean optional) {
+        this(projectName, selector, filter, target, flatten, optional, false);
+    }
+
+    public CopyArtifact(String projectName, BuildSelector selector, String filter, String target,
+                        boolean flatten, boolean optional, boolean incremental) {
+        this(projectName, selector, filter, target, flatten, optional, incremental, false);
+    }
+
+    public CopyArtifact(String projectName, BuildSelector selector, String filter, String target,
+                        boolean flatten, boolean optional, boolean incremental, boolean link) {
+        this(projectName, selector, filter, null, target, flatten, optional, incremental, link);
+    }
+
+    public CopyArtifact(String projectName, BuildSelector selector, String filter, String excludes,
+                        String target, boolean flatten, boolean optional, boolean incremental,
+                        boolean link) {
+        this(projectName, selector, filter, excludes, target, flatten, optional, incremental, link,
+             false);
+    }
+
+    public CopyArtifact(String projectName, BuildSelector selector, String filter, String excludes,
+                        String target, boolean flatten, boolean optional, boolean incremental,
+                        boolean link, boolean early) {
+        this(projectName, selector, filter, excludes, target, flatten, optional, incremental, link,
+             early, false, null);
+    }
+
+    @DataBoundConstructor
+    public CopyArtifact(String projectName, BuildSelector selector, String filter, String excludes,
+                        String target, boolean flatten, boolean optional, boolean incremental,
+                        boolean link, boolean early, boolean extract, String extractFilter) {
         // Prevents both invalid values and access to artifacts of projects which this user cannot see.
         // If value is parameterized, it will be checked when build runs.
         if (projectName.indexOf('$') < 0
@@ -95,9 +140,15 @@ public class CopyArtifact extends Builder {
         this.projectName = projectName;
         this.selector = selector;
         this.filter = Util.fixNull(filter).trim();
+        this.excludes = Util.fixEmptyAndTrim(excludes);
         this.target = Util.fixNull(target).trim();
         this.flatten = flatten ? Boolean.TRUE : null;
         this.optional = optional ? Boolean.TRUE : null;
+        this.incremental = incremental ? Boolean.TRUE : null;
+        this.link = link ? Boolean.TRUE : null;
+        this.early = early ? Boolean.TRUE : null;
+        this.extract = extract ? Boolean.TRUE : null;
+        this.extractFilter = Util.fixEmptyAndTrim(extractFilter);
     }
 
     // Upgrade data from old format
@@ -123,6 +174,10 @@ public class CopyArtifact extends Builder {
         return filter;
     }
 
+    public String getExcludes() {
+        return excludes;
+    }
+
     public String getTarget() {
         return target;
     }
@@ -135,15 +190,52 @@ public class CopyArtifact extends Builder {
         return optional != null && optional.booleanValue();
     }
 
+    public boolean isIncremental() {
+        return incremental != null && incremental.booleanValue();
+    }
+
+    public boolean isLink() {
+        return link != null && link.booleanValue();
+    }
+
+    public boolean isEarly() {
+        return early != null && early.booleanValue();
+    }
+
+    public boolean isExtract() {
+        return extract != null && extract.booleanValue();
+    }
+
+    public String getExtractFilter() {
+        return extractFilter;
+    }
+
     @Override
     public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener)
             throws InterruptedException {
+        EarlyCopy copy = EarlyCopy.take(build, this);
+        return copy != null ? copy.finish(build, listener)
+                            : perform(build, build.getWorkspace(), listener);
+    }
+
+    /**
+     * Copy artifacts into the target directory below the given directory.
+     * @param baseTargetDir Workspace of the build, or a directory to copy into
+     *   ahead of the build step
+     */
+    boolean perform(AbstractBuild<?,?> build, FilePath baseTargetDir, BuildListener listener)
+            throws InterruptedException {
         PrintStream console = listener.getLogger();
-        String expandedProject = projectName, expandedFilter = filter;
+        String expandedProject = projectName, expandedFilter = filter, expandedExcludes = null,
+               expandedEntries = null;
+        CopyStatsAction.Record stats = null;
+        CopyMetrics.get().started();
+        long start = System.nanoTime();
         try {
             EnvVars env = build.getEnvironment(listener);
             env.overrideAll(build.getBuildVariables()); // Add in matrix axes..
             expandedProject = env.expand(projectName);
+            stats = new CopyStatsAction.Record(expandedProject);
             Job job = Hudson.getInstance().getItemByFullName(expandedProject, Job.class);
             if (job != null && !expandedProject.equals(projectName)
                 // If projectName is parameterized, need to do permission check on source project.
@@ -156,16 +248,19 @@ public class CopyArtifact extends Builder {
                         Item.READ)) {
                 job = null; // Disallow access
             }
+            stats.resolved(System.nanoTime() - start);
             if (job == null) {
                 console.println(Messages.CopyArtifact_MissingProject(expandedProject));
                 return false;
             }
-            Run run = selector.getBuild(job, null, env);
+            start = System.nanoTime();
+            Run run = SelectionCache.getBuild(selector, job, env);
+            stats.selected(run != null ? run.getNumber() : 0, System.nanoTime() - start);
             if (run == null) {
                 console.println(Messages.CopyArtifact_MissingBuild(expandedProject));
                 return isOptional();  // Fail build unless copy is optional
             }
-            FilePath targetDir = build.getWorkspace(), baseTargetDir = targetDir;
+            FilePath targetDir = baseTargetDir;
             if (targetDir == null || !targetDir.exists()) {
                 console.println(Messages.CopyArtifact_MissingWorkspace()); // (see HUDSON-3330)
                 return isOptional();  // Fail build unless copy is optional
@@ -178,25 +273,32 @@ public class CopyArtifact extends Builder {
             if (target.length() > 0) targetDir = new FilePath(targetDir, env.expand(target));
             expandedFilter = env.expand(filter);
             if (expandedFilter.trim().length() == 0) expandedFilter = "**";
-            CopyMethod copier = Hudson.getInstance().getExtensionList(CopyMethod.class).get(0);
+            if (excludes != null) expandedExcludes = env.expand(excludes);
+            if (isExtract()) expandedEntries = extractFilter != null ? env.expand(extractFilter) : "**";
+            CopyMethod copier = getDescriptor().getCopyMethod();
 
             if (run instanceof MavenModuleSetBuild) {
                 // Copy artifacts from the build (ArchiveArtifacts build step)
-                boolean ok = perform(run, expandedFilter, targetDir, baseTargetDir, copier, console);
-                // Copy artifacts from all modules of this Maven build (automatic archiving)
-                for (Run r : ((MavenModuleSetBuild)run).getModuleLastBuilds().values())
-                    ok |= perform(r, expandedFilter, targetDir, baseTargetDir, copier, console);
-                return ok;
+                // and from all modules of this Maven build (automatic archiving)
+                List<Run> runs = new ArrayList<Run>();
+                runs.add(run);
+                runs.addAll(((MavenModuleSetBuild)run).getModuleLastBuilds().values());
+                int cnt = performAll(runs, expandedFilter, expandedExcludes, expandedEntries, targetDir,
+                                     false, baseTargetDir, copier, console, stats);
+                console.println(Messages.CopyArtifact_CopiedTotal(cnt, run.getFullDisplayName()));
+                return cnt > 0 || isOptional();
             } else if (run instanceof MatrixBuild) {
-                boolean ok = false;
-                // Copy artifacts from all configurations of this matrix build
-                for (Run r : ((MatrixBuild)run).getRuns())
-                    // Use subdir of targetDir with configuration name (like "jdk=java6u20")
-                    ok |= perform(r, expandedFilter, targetDir.child(r.getParent().getName()),
-                                  baseTargetDir, copier, console);
-                return ok;
+                // Copy artifacts from all configurations of this matrix build,
+                // using subdir of targetDir with configuration name (like "jdk=java6u20")
+                int cnt = performAll(((MatrixBuild)run).getRuns(), expandedFilter, expandedExcludes,
+                                     expandedEntries, targetDir, true, baseTargetDir, copier, console,
+                                     stats);
+                console.println(Messages.CopyArtifact_CopiedTotal(cnt, run.getFullDisplayName()));
+                return cnt > 0 || isOptional();
             } else {
-                return perform(run, expandedFilter, targetDir, baseTargetDir, copier, console);
+                int cnt = perform(run, expandedFilter, expandedExcludes, expandedEntries, targetDir,
+                                  baseTargetDir, copier, console, stats);
+                return cnt > 0 || isOptional();  // Fail build if 0 files copied unless copy is optional
             }
         }
         catch (IOException ex) {
@@ -205,38 +307,415 @@ public class CopyArtifact extends Builder {
                     Messages.CopyArtifact_FailedToCopy(expandedProject, expandedFilter)));
             return false;
         }
+        finally {
+            if (stats != null) synchronized (build) {
+                // Several steps of a MultiCopyArtifact may finish at once
+                CopyStatsAction action = build.getAction(CopyStatsAction.class);
+                if (action == null) build.addAction(action = new CopyStatsAction());
+                action.add(stats);
+            }
+            CopyMetrics.get().finished(stats, build.getBuiltOnStr());
+        }
     }
 
-    private boolean perform(Run run, String expandedFilter, FilePath targetDir,
-            FilePath baseTargetDir, CopyMethod copier, PrintStream console)
+    /**
+     * Copy artifacts from several builds, as many at once as the global configuration
+     * allows.  Console output of each copy is kept apart and printed once that copy is
+     * done.  A failure to copy from one build fails the step as when copying one build
+     * at a time, once the copies already started have finished.
+     * @param subdirs Copy into a subdir of targetDir named for the project of each build
+     * @return Total number of files copied
+     */
+    private int performAll(List<? extends Run> runs, final String expandedFilter,
+            final String expandedExcludes, final String expandedEntries, final FilePath targetDir,
+            final boolean subdirs, final FilePath baseTargetDir, final CopyMethod copier,
+            PrintStream console, final CopyStatsAction.Record stats)
             throws IOException, InterruptedException {
+        int cnt = 0;
+        if (getDescriptor().getConcurrentCopies() <= 1 || runs.size() <= 1) {
+            for (Run r : runs)
+                cnt += perform(r, expandedFilter, expandedExcludes, expandedEntries,
+                               subdirs ? targetDir.child(r.getParent().getName()) : targetDir,
+                               baseTargetDir, copier, console, stats);
+            return cnt;
+        }
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(runs.size());
+        List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>(runs.size());
+        try {
+            for (final Run r : runs) {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                outputs.add(output);
+                results.add(getDescriptor().getExecutor().submit(new Callable<Integer>() {
+                    public Integer call() throws IOException, InterruptedException {
+                        return perform(r, expandedFilter, expandedExcludes, expandedEntries,
+                                       subdirs ? targetDir.child(r.getParent().getName()) : targetDir,
+                                       baseTargetDir, copier, new PrintStream(output, true), stats);
+                    }
+                }));
+            }
+            IOException failure = null;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    cnt += results.get(i).get();
+                } catch (ExecutionException ex) {
+                    if (failure == null)
+                        failure = ex.getCause() instanceof IOException ? (IOException)ex.getCause()
+                                : new IOException2("Failed to copy from "
+                                        + runs.get(i).getFullDisplayName(), ex.getCause());
+                } finally {
+                    outputs.get(i).writeTo(console);
+                }
+            }
+            if (failure != null) throw failure;
+            return cnt;
+        } finally {
+            // Do not leave copies running if this build is aborted
+            for (Future<Integer> result : results)
+                result.cancel(true);
+        }
+    }
+
+    /**
+     * Copy artifacts from one build.
+     * @param expandedEntries Entries to extract from archives, or null to copy archives as is
+     * @return Number of files copied
+     */
+    private int perform(Run run, String expandedFilter, String expandedExcludes,
+            String expandedEntries, FilePath targetDir, FilePath baseTargetDir, CopyMethod copier,
+            PrintStream console,
+            CopyStatsAction.Record stats) throws IOException, InterruptedException {
         // Check special case for copying from workspace instead of artifacts:
-        FilePath srcDir = (selector instanceof WorkspaceSelector && run instanceof AbstractBuild)
+        boolean fromWorkspace = selector instanceof WorkspaceSelector && run instanceof AbstractBuild;
+        FilePath srcDir = fromWorkspace
                         ? ((AbstractBuild)run).getWorkspace() : new FilePath(run.getArtifactsDir());
         if (srcDir == null || !srcDir.exists()) {
             console.println(Messages.CopyArtifact_MissingWorkspace()); // (see HUDSON-3330)
-            return isOptional();  // Fail build unless copy is optional
+            return 0;
         }
 
-        copier.init(srcDir, baseTargetDir);
+        // Statistics of this copy, added to those of the step when done
+        CopyStatsAction.Record copyStats = CopyStatsAction.Record.start();
+        CopyScheduler.Slot slot = null;
+        try {
+            slot = CopyScheduler.get().acquire(run.getParent().getFullName(), console);
+            long start = System.nanoTime();
+            copier.init(srcDir, baseTargetDir);
+            copyStats.initialized(System.nanoTime() - start);
+            start = System.nanoTime();
+
+            // Archives to extract are not copied as they are
+            String copyExcludes = expandedEntries == null ? expandedExcludes
+                    : expandedExcludes == null ? ArchiveExtractor.PATTERNS
+                    : expandedExcludes + "," + ArchiveExtractor.PATTERNS;
+            // Members of archives, as in "bundle.zip!/config/**", are extracted by themselves
+            Map<String,String> members = new LinkedHashMap<String,String>();
+            String copyFilter = ArchiveExtractor.splitMembers(expandedFilter, members);
+            if (!isFlatten() && isIncremental() && !(copier instanceof FilePathCopyMethod))
+                console.println(Messages.CopyArtifact_IncrementalUnsupported(copier.getClass().getName()));
+            int cnt;
+            if (copyFilter == null) {
+                cnt = 0;  // Only members of archives to copy
+            } else if (!isFlatten() && isIncremental() && copier instanceof FilePathCopyMethod) {
+                cnt = ((FilePathCopyMethod)copier).copyChanged(srcDir, copyFilter, copyExcludes,
+                        targetDir, getDescriptor().isIncrementalChecksum());
+            } else if (!isFlatten() && isLink() && !fromWorkspace && copier instanceof FilePathCopyMethod) {
+                // Artifacts of a build never change, so can be shared with the target
+                cnt = ((FilePathCopyMethod)copier).copyLinked(srcDir, copyFilter, copyExcludes,
+                                                                targetDir);
+            } else if (!isFlatten()) {
+                // Artifacts of a build never change, so slaves may keep them in a cache
+                ArtifactCache cache = fromWorkspace ? null : ArtifactCache.get(targetDir);
+                cnt = cache != null
+                    ? cache.copy(run, srcDir, copyFilter, copyExcludes, targetDir,
+                                 copier, console)
+                    : copyAll(copier, srcDir, copyFilter, copyExcludes, targetDir);
+            } else if (copier instanceof FilePathCopyMethod) {
+                targetDir.mkdirs();  // Create target if needed
+                cnt = ((FilePathCopyMethod)copier).copyFlatten(srcDir, copyFilter, copyExcludes,
+                                                                 targetDir, console);
+            } else {
+                targetDir.mkdirs();  // Create target if needed
+                List<FileTransfer.Entry> list =
+                        FileTransfer.list(srcDir, copyFilter, copyExcludes, false);
+                CopyStatsAction.Record.sending(list);
+                for (FileTransfer.Entry file : list)
+                    copier.copyOne(srcDir.child(file.path), new FilePath(targetDir, file.getName()));
+                cnt = list.size();
+            }
+            if (expandedEntries != null && copyFilter != null)
+                cnt += extractAll(srcDir, copyFilter, expandedExcludes, expandedEntries, targetDir,
+                                  false, console);
+            for (Map.Entry<String,String> member : members.entrySet())
+                cnt += extractAll(srcDir, member.getKey(), expandedExcludes, member.getValue(),
+                                  targetDir, true, console);
+            copyStats.copied(cnt, System.nanoTime() - start);
+            console.println(Messages.CopyArtifact_Copied(cnt, run.getFullDisplayName()));
+            return cnt;
+        } finally {
+            if (slot != null) CopyScheduler.get().release(slot);
+            CopyStatsAction.Record.stop();
+            stats.add(copyStats);
+        }
+    }
+
+    /**
+     * Extract the matching archives into the directory they would be copied to.
+     * @param members Only transfer the entries to extract, where the archive format allows
+     * @return Number of files extracted
+     */
+    private int extractAll(FilePath srcDir, String filter, String excludes, String entries,
+            FilePath targetDir, boolean members, PrintStream console)
+            throws IOException, InterruptedException {
+        int cnt = 0;
+        for (FileTransfer.Entry file : FileTransfer.list(srcDir, filter, excludes, false)) {
+            if (!ArchiveExtractor.isArchive(file.path)) continue;
+            int i = file.path.lastIndexOf('/');
+            FilePath dir = isFlatten() || i < 0 ? targetDir : targetDir.child(file.path.substring(0, i));
+            int n = members ? ArchiveExtractor.extractMembers(srcDir, file.path, dir, entries)
+                            : ArchiveExtractor.extract(srcDir, file.path, dir, entries);
+            console.println(Messages.CopyArtifact_Extracted(n, file.path));
+            cnt += n;
+        }
+        return cnt;
+    }
 
-        int cnt;
-        if (!isFlatten())
-            cnt = copier.copyAll(srcDir, expandedFilter, targetDir);
-        else {
-            targetDir.mkdirs();  // Create target if needed
-            FilePath[] list = srcDir.list(expandedFilter);
-            for (FilePath file : list)
-                copier.copyOne(file, new FilePath(targetDir, file.getName()));
-            cnt = list.length;
+    /**
+     * Copy all matching files, also with a CopyMethod that cannot exclude files itself.
+     */
+    private static int copyAll(CopyMethod copier, FilePath srcDir, String filter, String excludes,
+            FilePath targetDir) throws IOException, InterruptedException {
+        if (copier instanceof FilePathCopyMethod)
+            return ((FilePathCopyMethod)copier).copyAll(srcDir, filter, excludes, targetDir);
+        if (excludes == null) {
+            CopyStatsAction.Record.sendingUnknown();
+            return copier.copyAll(srcDir, filter, targetDir);
         }
-        console.println(Messages.CopyArtifact_Copied(cnt, run.getFullDisplayName()));
-        // Fail build if 0 files copied unless copy is optional
-        return cnt > 0 || isOptional();
+        List<FileTransfer.Entry> list = FileTransfer.list(srcDir, filter, excludes, false);
+        CopyStatsAction.Record.sending(list);
+        for (FileTransfer.Entry file : list)
+            copier.copyOne(srcDir.child(file.path), targetDir.child(file.path));
+        return list.size();
+    }
+
+    @Override
+    public Action getProjectAction(AbstractProject<?,?> project) {
+        // Show one trend graph however many Copy Artifact steps the project has
+        List<CopyArtifact> copiers = ListenerImpl.getCopiers(project);
+        return !copiers.isEmpty() && copiers.get(0) == this ? new CopyStatsProjectAction(project) : null;
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl)super.getDescriptor();
     }
 
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+        private boolean parallelCopy;
+        private int transferStreams = 4;
+        private int cacheSize;
+        private boolean incrementalChecksum;
+        private boolean prefetch, peerTransfer;
+        private Compression compression = Compression.GZIP;
+        private int compressionLevel = 6;
+        private int concurrentCopies = 1;
+        private int maxCopies, maxRate;
+        private transient ThreadPoolExecutor executor;
+
+        public DescriptorImpl() {
+            load();
+        }
+
+        /**
+         * Whether artifacts are copied with {@link ParallelCopyMethod} or
+         * {@link LocalCopyMethod}, rather than with {@link FilePath} as before.
+         * Off by default, so a plain copy of all matching files on an existing
+         * installation goes through {@link FilePath#copyRecursiveTo} as in earlier
+         * versions; only the options added since, such as incremental copy, use
+         * this plugin's own stream without it.
+         */
+        public boolean isParallelCopy() {
+            return parallelCopy;
+        }
+
+        public void setParallelCopy(boolean parallelCopy) {
+            this.parallelCopy = parallelCopy;
+        }
+
+        /**
+         * The CopyMethod to use: the first one registered, skipping the methods of this
+         * plugin that copy with their own protocol unless enabled.
+         */
+        CopyMethod getCopyMethod() {
+            for (CopyMethod method : Hudson.getInstance().getExtensionList(CopyMethod.class))
+                if (parallelCopy || !(method instanceof ParallelCopyMethod)) return method;
+            throw new IllegalStateException("No CopyMethod");
+        }
+
+        /**
+         * Most streams to use at once for one artifact copy.
+         * @see ParallelCopyMethod
+         */
+        public int getTransferStreams() {
+            return transferStreams;
+        }
+
+        public void setTransferStreams(int transferStreams) {
+            this.transferStreams = Math.max(1, transferStreams);
+        }
+
+        /**
+         * Size limit in MB for the artifact cache on each slave, or 0 if there is no cache.
+         * @see ArtifactCache
+         */
+        public int getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = Math.max(0, cacheSize);
+        }
+
+        /**
+         * Whether incremental copies also compare file checksums, not just size and timestamp.
+         */
+        public boolean isIncrementalChecksum() {
+            return incrementalChecksum;
+        }
+
+        public void setIncrementalChecksum(boolean incrementalChecksum) {
+            this.incrementalChecksum = incrementalChecksum;
+        }
+
+        /**
+         * Whether artifacts of a completed build are pushed into the cache of slaves
+         * where projects copying from it ran recently.  Only applies if the cache is enabled.
+         */
+        public boolean isPrefetch() {
+            return prefetch;
+        }
+
+        public void setPrefetch(boolean prefetch) {
+            this.prefetch = prefetch;
+        }
+
+        /**
+         * Whether a slave may get cached artifacts from the cache of another slave,
+         * over a direct connection.  Only applies if the cache is enabled.
+         * @see PeerTransfer
+         */
+        public boolean isPeerTransfer() {
+            return peerTransfer;
+        }
+
+        public void setPeerTransfer(boolean peerTransfer) {
+            this.peerTransfer = peerTransfer;
+        }
+
+        /**
+         * How file content is compressed when streamed between nodes.
+         */
+        public Compression getCompression() {
+            return compression != null ? compression : Compression.GZIP;
+        }
+
+        public void setCompression(Compression compression) {
+            this.compression = compression;
+        }
+
+        public Compression[] getCompressions() {
+            return Compression.values();
+        }
+
+        /**
+         * Level (1-9) for {@link Compression#GZIP}.
+         */
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public void setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = Math.max(1, Math.min(9, compressionLevel));
+        }
+
+        /**
+         * Most matrix configurations to copy from at once.
+         */
+        public int getConcurrentCopies() {
+            return concurrentCopies;
+        }
+
+        public void setConcurrentCopies(int concurrentCopies) {
+            this.concurrentCopies = Math.max(1, concurrentCopies);
+            synchronized (this) {
+                if (executor == null) return;
+                // Grow the maximum first and shrink it last, so it never drops below the core size
+                if (this.concurrentCopies > executor.getMaximumPoolSize()) {
+                    executor.setMaximumPoolSize(this.concurrentCopies);
+                    executor.setCorePoolSize(this.concurrentCopies);
+                } else {
+                    executor.setCorePoolSize(this.concurrentCopies);
+                    executor.setMaximumPoolSize(this.concurrentCopies);
+                }
+            }
+        }
+
+        /**
+         * Most artifact copies to run at once across all builds, or 0 for no limit.
+         * @see CopyScheduler
+         */
+        public int getMaxCopies() {
+            return maxCopies;
+        }
+
+        public void setMaxCopies(int maxCopies) {
+            this.maxCopies = Math.max(0, maxCopies);
+        }
+
+        /**
+         * Limit in KB per second for content streamed by all copies together, or 0 for no limit.
+         * @see CopyScheduler
+         */
+        public int getMaxRate() {
+            return maxRate;
+        }
+
+        public void setMaxRate(int maxRate) {
+            this.maxRate = Math.max(0, maxRate);
+        }
+
+        /**
+         * Executor for copies from matrix configurations and Maven modules, shared by all
+         * builds so that no more than {@link #getConcurrentCopies()} copies run at once.
+         */
+        synchronized ExecutorService getExecutor() {
+            if (executor == null)
+                executor = new ThreadPoolExecutor(concurrentCopies, concurrentCopies,
+                        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new DaemonThreadFactory());
+            return executor;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            setConcurrentCopies(json.optInt("concurrentCopies", concurrentCopies));
+            setMaxCopies(json.optInt("maxCopies", maxCopies));
+            setMaxRate(json.optInt("maxRate", maxRate));
+            try {
+                setCompression(Compression.valueOf(json.optString("compression", "GZIP")));
+            } catch (IllegalArgumentException ex) {
+                throw new FormException(ex, "compression");
+            }
+            setCompressionLevel(json.optInt("compressionLevel", compressionLevel));
+            setIncrementalChecksum(json.optBoolean("incrementalChecksum"));
+            setPrefetch(json.optBoolean("prefetch"));
+            setPeerTransfer(json.optBoolean("peerTransfer"));
+            setParallelCopy(json.optBoolean("parallelCopy"));
+            setTransferStreams(json.optInt("transferStreams", transferStreams));
+            setCacheSize(json.optInt("cacheSize", cacheSize));
+            save();
+            return true;
+        }
 
         public FormValidation doCheckProjectName(
                 @AncestorInPath AccessControlled anc, @QueryParameter String value) {
@@ -277,8 +756,10 @@ public class CopyArtifact extends Builder {
     public static final class ListenerImpl extends ItemListener {
         @Override
         public void onRenamed(Item item, String oldName, String newName) {
-            for (AbstractProject<?,?> project
-                    : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            for (String consumer : ConsumerIndex.get().getConsumerNames(oldName, true)) {
+                AbstractProject<?,?> project =
+                        Hudson.getInstance().getItemByFullName(consumer, AbstractProject.class);
+                if (project == null) continue;
                 for (CopyArtifact ca : getCopiers(project)) try {
                     if (ca.getProjectName().equals(oldName))
                         ca.projectName = newName;
@@ -296,17 +777,23 @@ public class CopyArtifact extends Builder {
             }
         }
 
-        private static List<CopyArtifact> getCopiers(AbstractProject project) {
+        static List<CopyArtifact> getCopiers(AbstractProject project) {
             DescribableList<Builder,Descriptor<Builder>> list =
                     project instanceof Project ? ((Project<?,?>)project).getBuildersList()
                       : (project instanceof MatrixProject ?
                           ((MatrixProject)project).getBuildersList() : null);
             if (list == null) return Collections.emptyList();
-            return (List<CopyArtifact>)list.getAll(CopyArtifact.class);
+            List<CopyArtifact> copiers = new ArrayList<CopyArtifact>();
+            for (Builder builder : list) {
+                if (builder instanceof CopyArtifact) copiers.add((CopyArtifact)builder);
+                else if (builder instanceof MultiCopyArtifact)
+                    copiers.addAll(((MultiCopyArtifact)builder).getEntries());
+            }
+            return copiers;
         }
     }
 
-    // Listen for new builds and add EnvAction in any that use CopyArtifact build step
+    // Listen for new builds and add EnvAction in any that use CopyArtifact or MultiCopyArtifact
     @Extension
     public static final class CopyArtifactRunListener extends RunListener<Build> {
         public CopyArtifactRunListener() {
@@ -315,8 +802,23 @@ public class CopyArtifact extends Builder {
 
         @Override
         public void onStarted(Build r, TaskListener listener) {
-            if (((Build<?,?>)r).getProject().getBuildersList().get(CopyArtifact.class) != null)
+            DescribableList<Builder,Descriptor<Builder>> list =
+                    ((Build<?,?>)r).getProject().getBuildersList();
+            if (list.get(CopyArtifact.class) != null || list.get(MultiCopyArtifact.class) != null)
                 r.addAction(new EnvAction());
+            else
+                return;
+            List<CopyArtifact> copiers = ListenerImpl.getCopiers(r.getProject());
+            for (int i = 0; i < copiers.size(); i++) {
+                CopyArtifact ca = copiers.get(i);
+                if (ca.isEarly() && !ca.isIncremental()) EarlyCopy.start(r, i, ca);
+            }
+        }
+
+        @Override
+        public void onCompleted(Build r, TaskListener listener) {
+            // Steps that copied ahead but never ran, as an earlier step failed
+            EarlyCopy.discard(r);
         }
     }
     
@@ -324,7 +826,7 @@ public class CopyArtifact extends Builder {
         // Decided not to record this data in build.xml, so marked transient:
         private transient Map<String,String> data = new HashMap<String,String>();
 
-        private void add(String projectName, int buildNumber) {
+        private synchronized void add(String projectName, int buildNumber) {
             int i = projectName.indexOf('/'); // Omit any detail after a /
             if (i > 0) projectName = projectName.substring(0, i);
             data.put("COPYARTIFACT_BUILD_NUMBER_"
@@ -332,7 +834,7 @@ public class CopyArtifact extends Builder {
                      Integer.toString(buildNumber));
         }
 
-        public void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
+        public synchronized void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
             env.putAll(data);
         }
 
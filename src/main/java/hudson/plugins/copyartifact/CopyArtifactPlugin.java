@@ -30,8 +30,18 @@ import hudson.Plugin;
  */
 public class CopyArtifactPlugin extends Plugin {
 
+    @Override
+    public void start() throws Exception {
+        CopyMetrics.get().register();
+    }
+
     @Override
     public void postInitialize() throws Exception {
         BuildSelectorParameter.initAliases();
     }
+
+    @Override
+    public void stop() throws Exception {
+        CopyMetrics.get().unregister();
+    }
 }
@@ -30,7 +30,10 @@ import java.io.IOException;
 /**
  * Extension point for how files are copied.
  * CopyArtifact plugin provides a default implementation using methods
- * available in Hudson's FilePath class.
+ * available in Hudson's FilePath class.  Copy modes added since, such as
+ * copying only changed files, are methods of {@link FilePathCopyMethod}, so
+ * existing implementations of this interface keep working; other methods
+ * copy all matching files instead.
  * @author Alan Harder
  */
 public interface CopyMethod extends ExtensionPoint {
@@ -54,7 +57,9 @@ public interface CopyMethod extends ExtensionPoint {
     int copyAll(FilePath srcDir, String filter, FilePath targetDir) throws IOException, InterruptedException;
 
     /**
-     * Copy a single file.
+     * Copy a single file.  Also used to copy each file of a flattened copy, and of a
+     * copy with exclude patterns, unless the method extends {@link FilePathCopyMethod},
+     * which copies such sets of files at once.
      * @param source Source file
      * @param target Target file (includes filename; this is not the target directory).
      *   Directory for target should already exist (copy-artifact build step calls mkdirs).
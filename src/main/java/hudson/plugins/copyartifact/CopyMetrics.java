@@ -0,0 +1,294 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of Copy Artifact steps, exposed as MBeans under the
+ * <tt>hudson.plugins.copyartifact</tt> domain: one for all copies and one per source
+ * job and per target node with the transfer rates seen for them.  Counters are
+ * atomic rather than locked, so concurrent builds do not wait on each other.
+ */
+public final class CopyMetrics implements CopyMetricsMBean {
+    static final String DOMAIN = "hudson.plugins.copyartifact";
+
+    private static final CopyMetrics INSTANCE = new CopyMetrics();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Throughput total = new Throughput();
+    private final Histogram selection = new Histogram();
+    private final ConcurrentMap<String,Throughput> bySource = new ConcurrentHashMap<String,Throughput>(),
+                                                    byNode = new ConcurrentHashMap<String,Throughput>();
+    private volatile boolean registered;
+
+    private CopyMetrics() { }
+
+    public static CopyMetrics get() {
+        return INSTANCE;
+    }
+
+    void started() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Record a finished Copy Artifact step.
+     * @param stats Statistics of the step, or null if it failed before finding the source
+     * @param node Name of the node the copying build ran on ("" for the master)
+     */
+    void finished(CopyStatsAction.Record stats, String node) {
+        inFlight.decrementAndGet();
+        if (stats == null) return;
+        if (stats.getBuild() > 0)
+            selection.add(stats.getSelectNanos() / 1000);
+        total.add(stats);
+        throughput(bySource, "source", stats.getProject()).add(stats);
+        throughput(byNode, "node", node != null && node.length() > 0 ? node : "master").add(stats);
+    }
+
+    private Throughput throughput(ConcurrentMap<String,Throughput> map, String key, String name) {
+        Throughput result = map.get(name);
+        if (result == null) {
+            Throughput created = new Throughput();
+            result = map.putIfAbsent(name, created);
+            if (result == null) {
+                result = created;
+                if (registered) register(created, name(key, name));
+            }
+        }
+        return result;
+    }
+
+    private static ObjectName name(String key, String value) {
+        return name("Throughput," + key + '=' + ObjectName.quote(value));
+    }
+
+    private static ObjectName name(String type) {
+        try {
+            return new ObjectName(DOMAIN + ":type=" + type);
+        } catch (JMException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    /**
+     * Register the MBeans with the platform MBean server.
+     */
+    synchronized void register() {
+        register(this, name("CopyMetrics"));
+        for (ConcurrentMap.Entry<String,Throughput> e : bySource.entrySet())
+            register(e.getValue(), name("source", e.getKey()));
+        for (ConcurrentMap.Entry<String,Throughput> e : byNode.entrySet())
+            register(e.getValue(), name("node", e.getKey()));
+        registered = true;
+    }
+
+    /**
+     * Remove all MBeans of this plugin from the platform MBean server.
+     */
+    synchronized void unregister() {
+        registered = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":*"), null))
+                server.unregisterMBean(name);
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING, "Failed to unregister MBeans", ex);
+        }
+    }
+
+    private static void register(Object mbean, ObjectName name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) server.registerMBean(mbean, name);
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING, "Failed to register MBean " + name, ex);
+        }
+    }
+
+    public int getInFlightCopies() {
+        return inFlight.get();
+    }
+
+    public long getCopies() {
+        return total.getCopies();
+    }
+
+    public long getFilesCopied() {
+        return total.getFilesCopied();
+    }
+
+    public long getBytesCopied() {
+        return total.getBytesCopied();
+    }
+
+    public long getBytesPerSecondMedian() {
+        return total.getBytesPerSecondMedian();
+    }
+
+    public long getBytesPerSecond90thPercentile() {
+        return total.getBytesPerSecond90thPercentile();
+    }
+
+    public long getSelections() {
+        return selection.getCount();
+    }
+
+    public long getSelectionMicrosMedian() {
+        return selection.getPercentile(0.5);
+    }
+
+    public long getSelectionMicros90thPercentile() {
+        return selection.getPercentile(0.9);
+    }
+
+    public long getSelectionMicros99thPercentile() {
+        return selection.getPercentile(0.99);
+    }
+
+    public long getSelectionCacheHits() {
+        return SelectionCache.getHitCount();
+    }
+
+    public long getSelectionCacheMisses() {
+        return SelectionCache.getMissCount();
+    }
+
+    /**
+     * Management interface of {@link Throughput}.
+     */
+    public interface ThroughputMBean {
+        long getCopies();
+
+        long getFilesCopied();
+
+        long getBytesCopied();
+
+        long getBytesPerSecondMedian();
+
+        long getBytesPerSecond90thPercentile();
+
+        /**
+         * Number of copies by transfer rate: element i counts copies of less than
+         * 2<sup>i</sup> bytes per second (and at least half that).
+         */
+        long[] getBytesPerSecondHistogram();
+    }
+
+    /**
+     * Copies and transfer rates for a source job, target node or all copies.
+     */
+    public static final class Throughput implements ThroughputMBean {
+        private final AtomicLong copies = new AtomicLong(), files = new AtomicLong(), bytes = new AtomicLong();
+        private final Histogram rate = new Histogram();
+
+        void add(CopyStatsAction.Record stats) {
+            copies.incrementAndGet();
+            files.addAndGet(stats.getFiles());
+            bytes.addAndGet(stats.getBytes());
+            // Rate is only known where bytes are, and only meaningful for a measurable transfer
+            long nanos = stats.getTransferNanos();
+            if (stats.isBytesKnown() && stats.getBytes() > 0 && nanos > 0)
+                rate.add((long)(stats.getBytes() * 1e9 / nanos));
+        }
+
+        public long getCopies() {
+            return copies.get();
+        }
+
+        public long getFilesCopied() {
+            return files.get();
+        }
+
+        public long getBytesCopied() {
+            return bytes.get();
+        }
+
+        public long getBytesPerSecondMedian() {
+            return rate.getPercentile(0.5);
+        }
+
+        public long getBytesPerSecond90thPercentile() {
+            return rate.getPercentile(0.9);
+        }
+
+        public long[] getBytesPerSecondHistogram() {
+            return rate.getCounts();
+        }
+    }
+
+    /**
+     * Counts of values in power of two buckets.  Percentiles are given as the upper
+     * bound of the bucket they fall in, so are accurate to within a factor of two.
+     */
+    static final class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(64);
+
+        void add(long value) {
+            counts.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+        }
+
+        long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) count += counts.get(i);
+            return count;
+        }
+
+        long[] getCounts() {
+            long[] result = new long[counts.length()];
+            for (int i = 0; i < result.length; i++) result[i] = counts.get(i);
+            return result;
+        }
+
+        /**
+         * @param fraction Percentile as a fraction, like 0.9 for the 90th
+         * @return Upper bound of the bucket where the percentile falls, or 0 if empty
+         */
+        long getPercentile(double fraction) {
+            long[] c = getCounts();
+            long count = 0;
+            for (long n : c) count += n;
+            if (count == 0) return 0;
+            long rank = (long)Math.ceil(fraction * count), seen = 0;
+            for (int i = 0; i < c.length; i++) {
+                seen += c[i];
+                if (seen >= rank) return i == 0 ? 0 : (i == 63 ? Long.MAX_VALUE : (1L << i) - 1);
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CopyMetrics.class.getName());
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+/**
+ * Management interface of {@link CopyMetrics}.
+ */
+public interface CopyMetricsMBean {
+    /** Copy Artifact steps running now. */
+    int getInFlightCopies();
+
+    /** Copy Artifact steps run. */
+    long getCopies();
+
+    long getFilesCopied();
+
+    long getBytesCopied();
+
+    /** Median transfer rate of copy steps, in bytes per second. */
+    long getBytesPerSecondMedian();
+
+    long getBytesPerSecond90thPercentile();
+
+    /** Builds selected. */
+    long getSelections();
+
+    /** Median time to select a build, in microseconds. */
+    long getSelectionMicrosMedian();
+
+    long getSelectionMicros90thPercentile();
+
+    long getSelectionMicros99thPercentile();
+
+    /** Builds selected using the {@link SelectionCache}. */
+    long getSelectionCacheHits();
+
+    /** Builds selected by a lookup that could have used the cache. */
+    long getSelectionCacheMisses();
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.model.Hudson;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits artifact copies across all builds on this Hudson, so many builds starting
+ * at once do not all compete for the master's disk and network.  At most the
+ * configured number of copies run at once; waiting copies are let in taking turns
+ * between source projects, so a project with many waiting consumers does not hold
+ * up the others.  Streamed content may also be limited to a total byte rate.
+ */
+final class CopyScheduler {
+    private static final CopyScheduler INSTANCE = new CopyScheduler();
+
+    /** Longest burst, in nanoseconds, that may exceed the byte rate after a pause. */
+    private static final long BURST = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Waiting copies, by source project, in the order projects get their turn. */
+    private final Map<String,LinkedList<Slot>> waiting = new LinkedHashMap<String,LinkedList<Slot>>();
+    private int running, queued;
+
+    /** When the bytes already paced for will have been sent at the byte rate. */
+    private long paced;
+
+    private CopyScheduler() { }
+
+    static CopyScheduler get() {
+        return INSTANCE;
+    }
+
+    private static CopyArtifact.DescriptorImpl getDescriptor() {
+        return Hudson.getInstance().getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+    }
+
+    /**
+     * Wait until a copy from the given project may start.
+     * @param console Receives a note if the copy has to wait, or null
+     * @return Slot to release when the copy is done
+     */
+    Slot acquire(String project, PrintStream console) throws InterruptedException {
+        Slot slot = new Slot();
+        int ahead;
+        synchronized (this) {
+            int max = getDescriptor().getMaxCopies();
+            if (max <= 0 || (running < max && queued == 0)) {
+                running++;
+                slot.granted = true;
+                return slot;
+            }
+            LinkedList<Slot> queue = waiting.get(project);
+            if (queue == null) waiting.put(project, queue = new LinkedList<Slot>());
+            queue.add(slot);
+            ahead = queued++;
+        }
+        if (console != null) console.println(Messages.CopyScheduler_Waiting(ahead));
+        long start = System.nanoTime();
+        synchronized (this) {
+            try {
+                while (!slot.granted) wait();
+            } catch (InterruptedException ex) {
+                if (slot.granted) release(slot);
+                else remove(project, slot);
+                throw ex;
+            }
+        }
+        if (console != null)
+            console.println(Messages.CopyScheduler_Waited(
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return slot;
+    }
+
+    /**
+     * Let in the next waiting copy, if any, now that the given one is done.
+     */
+    synchronized void release(Slot slot) {
+        if (!slot.granted || slot.released) return;
+        slot.released = true;
+        running--;
+        int max = getDescriptor().getMaxCopies();
+        while ((max <= 0 || running < max) && queued > 0) {
+            // The project at the head gets a turn, then goes to the back of the line
+            Iterator<Map.Entry<String,LinkedList<Slot>>> it = waiting.entrySet().iterator();
+            Map.Entry<String,LinkedList<Slot>> turn = it.next();
+            it.remove();
+            Slot next = turn.getValue().removeFirst();
+            if (!turn.getValue().isEmpty()) waiting.put(turn.getKey(), turn.getValue());
+            queued--;
+            running++;
+            next.granted = true;
+        }
+        notifyAll();
+    }
+
+    private void remove(String project, Slot slot) {
+        LinkedList<Slot> queue = waiting.get(project);
+        if (queue != null && queue.remove(slot)) {
+            queued--;
+            if (queue.isEmpty()) waiting.remove(project);
+        }
+    }
+
+    /** Number of copies running, for tests and monitoring. */
+    synchronized int getRunning() {
+        return running;
+    }
+
+    /** Number of copies waiting to start. */
+    synchronized int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Wait until the given number of bytes may be sent without exceeding the byte rate.
+     * Streams are paced in the order they ask.
+     */
+    void pace(int bytes) throws InterruptedIOException {
+        long rate = getDescriptor().getMaxRate() * 1024L;
+        if (rate <= 0 || bytes <= 0) return;
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (paced < now - BURST) paced = now - BURST;
+            paced += bytes * 1000000000L / rate;
+            delay = paced - now;
+        }
+        if (delay > 0) try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Stream that writes no faster than the byte rate allows.
+     */
+    OutputStream pace(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                pace(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                pace(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Stream that reads no faster than the byte rate allows.
+     */
+    InputStream pace(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) pace(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                pace(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Permission for one copy to run.
+     */
+    static final class Slot {
+        private boolean granted, released;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.model.Action;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Time spent in each phase of the Copy Artifact steps of a build, with the number of
+ * files and bytes copied.  Shown on the build page and in a trend graph on the project.
+ */
+public class CopyStatsAction implements Action {
+    private final List<Record> records = new ArrayList<Record>();
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.CopyStatsAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    synchronized void add(Record record) {
+        records.add(record);
+    }
+
+    /**
+     * Statistics for each Copy Artifact step of the build, in order.
+     */
+    public synchronized List<Record> getRecords() {
+        return Collections.unmodifiableList(new ArrayList<Record>(records));
+    }
+
+    /**
+     * Statistics for all Copy Artifact steps of the build together.
+     */
+    public synchronized Record getTotal() {
+        Record total = new Record();
+        for (Record record : records) total.add(record);
+        return total;
+    }
+
+    /**
+     * Statistics for one Copy Artifact step.  Times are kept in nanoseconds.
+     * While a copy is in progress the record of the copying thread collects the
+     * time spent listing files and the files sent by the copy methods.
+     */
+    public static final class Record {
+        private static final ThreadLocal<Record> CURRENT = new ThreadLocal<Record>();
+
+        private String project;
+        private int build;
+        private long resolveTime, selectTime, initTime, listTime, transferTime, bytes;
+        private int files;
+        /** Whether some files were copied by a method which does not tell their size */
+        private boolean bytesUnknown;
+
+        Record() { }
+
+        Record(String project) {
+            this.project = project;
+        }
+
+        /** Source project, as named by the step after expanding parameters. */
+        public String getProject() {
+            return project;
+        }
+
+        /** Number of the selected build, or 0 if none was found. */
+        public int getBuild() {
+            return build;
+        }
+
+        public long getResolveMillis() {
+            return resolveTime / 1000000;
+        }
+
+        public long getSelectMillis() {
+            return selectTime / 1000000;
+        }
+
+        public long getInitMillis() {
+            return initTime / 1000000;
+        }
+
+        public long getListMillis() {
+            return listTime / 1000000;
+        }
+
+        public long getTransferMillis() {
+            return transferTime / 1000000;
+        }
+
+        long getSelectNanos() {
+            return selectTime;
+        }
+
+        long getTransferNanos() {
+            return transferTime;
+        }
+
+        /** Number of files matched by the filter, whether or not they had to be sent. */
+        public int getFiles() {
+            return files;
+        }
+
+        /** Bytes sent, where known to the copy method. */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Whether {@link #getBytes} counts all files sent, rather than only some or none
+         * of them as when a copy method from another plugin copied the rest.
+         */
+        public boolean isBytesKnown() {
+            return !bytesUnknown;
+        }
+
+        void resolved(long nanos) {
+            resolveTime += nanos;
+        }
+
+        void selected(int build, long nanos) {
+            this.build = build;
+            selectTime += nanos;
+        }
+
+        void initialized(long nanos) {
+            initTime += nanos;
+        }
+
+        /**
+         * Record a copy that took the given time, less the time spent listing files.
+         */
+        void copied(int files, long nanos) {
+            this.files += files;
+            transferTime += Math.max(0, nanos - listTime);
+        }
+
+        synchronized void add(Record other) {
+            resolveTime += other.resolveTime;
+            selectTime += other.selectTime;
+            initTime += other.initTime;
+            listTime += other.listTime;
+            transferTime += other.transferTime;
+            bytes += other.bytes;
+            files += other.files;
+            bytesUnknown |= other.bytesUnknown;
+        }
+
+        /**
+         * Start collecting statistics of a copy in the current thread.
+         */
+        static Record start() {
+            Record record = new Record();
+            CURRENT.set(record);
+            return record;
+        }
+
+        /**
+         * Stop collecting statistics in the current thread.
+         */
+        static void stop() {
+            CURRENT.remove();
+        }
+
+        /**
+         * Count time spent listing files toward the copy in the current thread, if any.
+         */
+        static void listed(long nanos) {
+            Record record = CURRENT.get();
+            if (record != null) record.listTime += nanos;
+        }
+
+        /**
+         * Count files being sent toward the copy in the current thread, if any.
+         */
+        static void sending(List<FileTransfer.Entry> files) {
+            Record record = CURRENT.get();
+            if (record != null)
+                for (FileTransfer.Entry file : files) record.bytes += file.size;
+        }
+
+        /**
+         * Note that the copy in the current thread, if any, sent files of unknown size.
+         */
+        static void sendingUnknown() {
+            Record record = CURRENT.get();
+            if (record != null) record.bytesUnknown = true;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.util.ChartUtil;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.ColorPalette;
+import hudson.util.DataSetBuilder;
+import hudson.util.ShiftedCategoryAxis;
+import java.awt.Color;
+import java.io.IOException;
+import java.util.Calendar;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.ui.RectangleInsets;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Trend graph of the time spent copying artifacts in recent builds of a project.
+ */
+public class CopyStatsProjectAction implements Action {
+    /** Number of recent builds shown in the graph, with or without statistics. */
+    private static final int MAX_BUILDS = 30;
+
+    private final AbstractProject<?,?> project;
+
+    public CopyStatsProjectAction(AbstractProject<?,?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?,?> getProject() {
+        return project;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.CopyStatsAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "copyartifactStats";
+    }
+
+    /**
+     * Is there any build with statistics to show?
+     */
+    public boolean isGraphActive() {
+        return getLastBuildWithStats() != null;
+    }
+
+    /**
+     * Latest of the builds shown in the graph with statistics, so older builds are not
+     * loaded just to render the project page.
+     */
+    private AbstractBuild<?,?> getLastBuildWithStats() {
+        int count = 0;
+        for (AbstractBuild<?,?> b = project.getLastCompletedBuild();
+                b != null && count < MAX_BUILDS; b = b.getPreviousCompletedBuild(), count++)
+            if (b.getAction(CopyStatsAction.class) != null) return b;
+        return null;
+    }
+
+    public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        AbstractBuild<?,?> last = getLastBuildWithStats();
+        if (last == null) {
+            rsp.setStatus(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        Calendar timestamp = last.getTimestamp();
+        if (req.checkIfModified(timestamp, rsp)) return;
+        ChartUtil.generateGraph(req, rsp, createChart(buildDataSet()), 500, 200);
+    }
+
+    private CategoryDataset buildDataSet() {
+        DataSetBuilder<String,NumberOnlyBuildLabel> dsb = new DataSetBuilder<String,NumberOnlyBuildLabel>();
+        int count = 0;
+        for (AbstractBuild<?,?> b = project.getLastCompletedBuild();
+                b != null && count < MAX_BUILDS; b = b.getPreviousCompletedBuild(), count++) {
+            CopyStatsAction stats = b.getAction(CopyStatsAction.class);
+            if (stats == null) continue;
+            CopyStatsAction.Record total = stats.getTotal();
+            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(b);
+            dsb.add(total.getResolveMillis() + total.getSelectMillis(), Messages.CopyStatsAction_Select(), label);
+            dsb.add(total.getInitMillis(), Messages.CopyStatsAction_Init(), label);
+            dsb.add(total.getListMillis(), Messages.CopyStatsAction_List(), label);
+            dsb.add(total.getTransferMillis(), Messages.CopyStatsAction_Transfer(), label);
+        }
+        return dsb.build();
+    }
+
+    private static JFreeChart createChart(CategoryDataset dataset) {
+        JFreeChart chart = ChartFactory.createStackedAreaChart(null, null,
+                Messages.CopyStatsAction_Milliseconds(), dataset, PlotOrientation.VERTICAL,
+                true, false, false);
+        chart.setBackgroundPaint(Color.WHITE);
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setForegroundAlpha(0.8f);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(Color.BLACK);
+        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        plot.setDomainAxis(domainAxis);
+        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+        plot.getRenderer().setSeriesPaint(0, ColorPalette.BLUE);
+        plot.getRenderer().setSeriesPaint(1, ColorPalette.GREY);
+        plot.getRenderer().setSeriesPaint(2, ColorPalette.YELLOW);
+        plot.getRenderer().setSeriesPaint(3, ColorPalette.RED);
+        plot.setInsets(new RectangleInsets(0, 0, 0, 5.0));
+        return chart;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Items;
+import hudson.model.Node;
+import hudson.model.StreamBuildListener;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Copy for a Copy Artifact step started in the background when the build starts,
+ * so it overlaps with the SCM checkout and earlier build steps.  The workspace may
+ * not exist yet and checkout may clean it, so files are copied into a staging
+ * directory on the build's node.  The build step waits for the copy, shows its
+ * console output and then moves the files into the workspace, linking them where
+ * possible.  Copies are found by the position of the step among the project's
+ * Copy Artifact steps, so a step changed while the build runs does not use a copy
+ * started with the old configuration.
+ */
+final class EarlyCopy {
+    private static final String DIR_NAME = "copyartifact-staging";
+
+    /** Copies started for each build, by index in {@link CopyArtifact.ListenerImpl#getCopiers}. */
+    private static final Map<AbstractBuild<?,?>,Map<Integer,EarlyCopy>> COPIES =
+            new WeakHashMap<AbstractBuild<?,?>,Map<Integer,EarlyCopy>>();
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+    private final CopyArtifact step;
+    private final FilePath staging;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final long started = System.nanoTime();
+    private Future<Boolean> result;
+
+    private EarlyCopy(CopyArtifact step, FilePath staging) {
+        this.step = step;
+        this.staging = staging;
+    }
+
+    /**
+     * Start copying for the given step of a build that has just started.
+     * Must be called on the executor running the build, to find its node.
+     * @param index Index of the step in {@link CopyArtifact.ListenerImpl#getCopiers}
+     */
+    static void start(AbstractBuild<?,?> build, int index, final CopyArtifact step) {
+        Computer computer = Computer.currentComputer();
+        Node node = computer != null ? computer.getNode() : null;
+        FilePath root = node != null ? node.getRootPath() : null;
+        if (root == null) return;  // The step copies as usual
+        final EarlyCopy copy;
+        try {
+            FilePath dir = root.child(DIR_NAME);
+            dir.mkdirs();
+            copy = new EarlyCopy(step, dir.createTempDir("copy", ".dir"));
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "Failed to create staging directory for " + build, ex);
+            return;
+        }
+        // Find the build again by number, so the pending copy does not keep it in COPIES
+        final String job = build.getProject().getFullName();
+        final int number = build.getNumber();
+        copy.result = EXECUTOR.submit(new Callable<Boolean>() {
+            public Boolean call() throws InterruptedException {
+                // Run as the step would on the build's executor
+                SecurityContext context = SecurityContextHolder.getContext();
+                Authentication old = context.getAuthentication();
+                context.setAuthentication(ACL.SYSTEM);
+                try {
+                    AbstractProject<?,?> project =
+                            Hudson.getInstance().getItemByFullName(job, AbstractProject.class);
+                    AbstractBuild<?,?> run = project != null ? project.getBuildByNumber(number) : null;
+                    if (run == null) return false;
+                    return step.perform(run, copy.staging, new StreamBuildListener(copy.output));
+                } finally {
+                    context.setAuthentication(old);
+                }
+            }
+        });
+        synchronized (COPIES) {
+            Map<Integer,EarlyCopy> copies = COPIES.get(build);
+            if (copies == null) COPIES.put(build, copies = new HashMap<Integer,EarlyCopy>());
+            copies.put(index, copy);
+        }
+    }
+
+    /**
+     * Get the copy started for the given step, if any.  A copy started before the
+     * step was reconfigured is discarded.
+     */
+    static EarlyCopy take(AbstractBuild<?,?> build, CopyArtifact step) {
+        int index = CopyArtifact.ListenerImpl.getCopiers(build.getProject()).indexOf(step);
+        if (index < 0) return null;
+        EarlyCopy copy;
+        synchronized (COPIES) {
+            Map<Integer,EarlyCopy> copies = COPIES.get(build);
+            copy = copies != null ? copies.remove(index) : null;
+        }
+        if (copy == null || copy.step == step
+                || Items.XSTREAM.toXML(copy.step).equals(Items.XSTREAM.toXML(step)))
+            return copy;
+        copy.result.cancel(true);
+        copy.delete();
+        return null;
+    }
+
+    /**
+     * Stop and clean up copies started for steps of the given build that did not run.
+     */
+    static void discard(AbstractBuild<?,?> build) {
+        Map<Integer,EarlyCopy> copies;
+        synchronized (COPIES) {
+            copies = COPIES.remove(build);
+        }
+        if (copies != null)
+            for (EarlyCopy copy : copies.values()) {
+                copy.result.cancel(true);
+                copy.delete();
+            }
+    }
+
+    /**
+     * Wait for the copy to finish and move the files into the workspace.
+     * @return Result of the build step
+     */
+    boolean finish(AbstractBuild<?,?> build, BuildListener listener) throws InterruptedException {
+        try {
+            boolean ok;
+            try {
+                ok = result.get();
+            } catch (ExecutionException ex) {
+                ex.getCause().printStackTrace(new PrintStream(output, true));
+                ok = false;
+            } finally {
+                listener.getLogger().println(Messages.EarlyCopy_Copied(
+                        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started)));
+                try {
+                    output.writeTo(listener.getLogger());
+                } catch (IOException ignore) { }
+            }
+            if (!ok) return false;
+            FilePath workspace = build.getWorkspace();
+            if (workspace == null || !workspace.exists()) {
+                listener.getLogger().println(Messages.CopyArtifact_MissingWorkspace());
+                return step.isOptional();
+            }
+            List<FileTransfer.Entry> files = FileTransfer.list(staging, "**");
+            if (!files.isEmpty()) FileTransfer.copyLocal(staging, files, workspace, 1, true);
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace(listener.error(Messages.EarlyCopy_Failed()));
+            return false;
+        } finally {
+            result.cancel(true);
+            delete();
+        }
+    }
+
+    private void delete() {
+        try {
+            staging.deleteRecursive();
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + staging, ex);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(EarlyCopy.class.getName());
+}
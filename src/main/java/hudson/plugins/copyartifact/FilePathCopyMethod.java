@@ -28,12 +28,19 @@ import hudson.FilePath;
 import hudson.model.Hudson;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Default implementation of CopyMethod extension point,
  * using Hudson's FilePath class.  Has -100 ordinal value so any other
  * plugin implementing this extension point should override this one.
+ * A plain copy of all matching files goes through {@link FilePath#copyRecursiveTo}
+ * as in earlier versions.  Incremental, flattened and cached copies list the files
+ * first and send them over this plugin's own stream, compressed as set in the global
+ * configuration, as do the subclasses used when parallel copy is enabled.
  * @author Alan Harder
  */
 @Extension(ordinal=-100)
@@ -57,12 +64,28 @@ public class FilePathCopyMethod implements CopyMethod {
             tmp.deleteRecursive();
         }
         // End workaround
+        FileTransfer.preload(srcDir);
+        FileTransfer.preload(baseTargetDir);
     }
 
     /** @see FilePath#recursiveCopyTo(String,FilePath) */
     public int copyAll(FilePath srcDir, String filter, FilePath targetDir)
             throws IOException, InterruptedException {
-        return srcDir.copyRecursiveTo(filter, targetDir);
+        return copyAll(srcDir, filter, null, targetDir);
+    }
+
+    /**
+     * Copy files matching the given file mask but not the excludes to the specified target.
+     * CopyArtifact calls this instead of {@link #copyAll(FilePath,String,FilePath)}
+     * when the CopyMethod extends this class.  The files are not listed beforehand, so
+     * the bytes sent are not known to the copy statistics.
+     * @param excludes Ant GLOB pattern of files to leave out, or null
+     * @see FilePath#copyRecursiveTo(String,String,FilePath)
+     */
+    public int copyAll(FilePath srcDir, String filter, String excludes, FilePath targetDir)
+            throws IOException, InterruptedException {
+        CopyStatsAction.Record.sendingUnknown();
+        return srcDir.copyRecursiveTo(filter, excludes, targetDir);
     }
 
     /** @see FilePath#copyTo(FilePath) */
@@ -70,4 +93,91 @@ public class FilePathCopyMethod implements CopyMethod {
             throws IOException, InterruptedException {
         source.copyTo(target);
     }
+
+    /**
+     * Copy files matching the given file mask to the specified target, skipping files
+     * the target already has with the same size and timestamp.  The source and target
+     * files are compared with one call to each node before anything is transferred.
+     * CopyArtifact calls this instead of {@link #copyAll} for an incremental copy when
+     * the CopyMethod extends this class.
+     * @param srcDir Source directory
+     * @param filter Ant GLOB pattern
+     * @param excludes Ant GLOB pattern of files to leave out, or null
+     * @param targetDir Target directory
+     * @param checksum Also compare the MD5 of each file
+     * @return Number of files matching the file mask, whether copied or already up to date
+     */
+    public int copyChanged(FilePath srcDir, String filter, String excludes, FilePath targetDir,
+                           boolean checksum) throws IOException, InterruptedException {
+        List<FileTransfer.Entry> files = FileTransfer.list(srcDir, filter, excludes, checksum);
+        List<FileTransfer.Entry> changed = FileTransfer.changed(files, targetDir);
+        if (!changed.isEmpty()) send(srcDir, changed, targetDir);
+        return files.size();
+    }
+
+    /**
+     * Copy files matching the given file mask directly into the target directory,
+     * ignoring the directory structure of the source.  All files are sent together
+     * rather than with one call per file.  CopyArtifact calls this instead of
+     * {@link #copyOne} for each file when the CopyMethod extends this class.
+     * @param srcDir Source directory
+     * @param filter Ant GLOB pattern
+     * @param excludes Ant GLOB pattern of files to leave out, or null
+     * @param targetDir Target directory, which should already exist
+     * @param console Receives a warning for each file that is not copied because
+     *   another matching file has the same name
+     * @return Number of files matching the file mask
+     */
+    public int copyFlatten(FilePath srcDir, String filter, String excludes, FilePath targetDir,
+                           PrintStream console) throws IOException, InterruptedException {
+        List<FileTransfer.Entry> files = FileTransfer.list(srcDir, filter, excludes, false);
+        List<String> skipped = new ArrayList<String>();
+        List<FileTransfer.Entry> flat = FileTransfer.flatten(files, skipped);
+        for (String path : skipped)
+            console.println(Messages.CopyArtifact_FlattenCollision(path));
+        if (!flat.isEmpty()) send(srcDir, flat, targetDir);
+        return files.size();
+    }
+
+    /**
+     * Link files matching the given file mask into the target directory instead of
+     * copying their content, for consumers which only read the files.  Each file is
+     * hardlinked where possible, else cloned on filesystems that support copy-on-write
+     * clones, else copied.  Files are copied as usual if the source and target are
+     * on different nodes without shared storage.  CopyArtifact calls this instead of
+     * {@link #copyAll} to link artifacts when the CopyMethod extends this class.
+     * @param srcDir Source directory, which should not change afterwards
+     * @param filter Ant GLOB pattern
+     * @param excludes Ant GLOB pattern of files to leave out, or null
+     * @param targetDir Target directory
+     * @return Number of files matching the file mask
+     */
+    public int copyLinked(FilePath srcDir, String filter, String excludes, FilePath targetDir)
+            throws IOException, InterruptedException {
+        List<FileTransfer.Entry> files = FileTransfer.list(srcDir, filter, excludes, false);
+        if (files.isEmpty()) return 0;
+        if (!FileTransfer.isLocal(srcDir, targetDir))
+            return send(srcDir, files, targetDir);
+        FileTransfer.copyLocal(srcDir, files, targetDir, 1, true);
+        return files.size();
+    }
+
+    /**
+     * Copy the given files with {@link #copy}, counting them in the copy statistics.
+     * @return Number of files that were copied
+     */
+    final int send(FilePath srcDir, List<FileTransfer.Entry> files, FilePath targetDir)
+            throws IOException, InterruptedException {
+        CopyStatsAction.Record.sending(files);
+        return copy(srcDir, files, targetDir);
+    }
+
+    /**
+     * Copy the given files, keeping their paths relative to srcDir.
+     * @return Number of files that were copied
+     */
+    int copy(FilePath srcDir, List<FileTransfer.Entry> files, FilePath targetDir)
+            throws IOException, InterruptedException {
+        return FileTransfer.copy(srcDir, files, targetDir);
+    }
 }
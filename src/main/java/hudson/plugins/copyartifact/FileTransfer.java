@@ -0,0 +1,759 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.os.PosixAPI;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.IOException2;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.tools.ant.DirectoryScanner;
+
+/**
+ * Copies an explicit list of files from one directory to another, where either
+ * directory may be on the master or on a slave.  Unlike
+ * {@link FilePath#copyRecursiveTo(String,FilePath)} the caller decides exactly which
+ * files are sent, so a large set can be split up and sent over several streams at once.
+ * Files are sent as a plain sequence of records (path, size, timestamp, mode, content),
+ * with the content compressed in blocks as set in the global configuration.
+ */
+final class FileTransfer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Whether each slave shares HUDSON_HOME with the master, by channel. */
+    private static final Map<VirtualChannel,Boolean> SHARED = new WeakHashMap<VirtualChannel,Boolean>();
+
+    /** Channels to slaves where the classes used while copying are loaded. */
+    private static final Map<VirtualChannel,Boolean> PRELOADED = new WeakHashMap<VirtualChannel,Boolean>();
+
+    /** Threads for copies using several streams or threads, shared by all copies on a node. */
+    static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+    private FileTransfer() { }
+
+    /**
+     * A file to copy, as a path relative to the source directory.
+     */
+    static final class Entry implements Serializable {
+        final String path;
+        final long size, lastModified;
+        /** MD5 of the content, if requested when listing files */
+        final String hash;
+        /** Path relative to the target directory, if not the same as the source path */
+        private final String target;
+
+        Entry(String path, long size, long lastModified, String hash) {
+            this(path, size, lastModified, hash, null);
+        }
+
+        private Entry(String path, long size, long lastModified, String hash, String target) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.target = target;
+        }
+
+        /**
+         * Same file, copied to another path in the target directory.
+         */
+        Entry copyTo(String target) {
+            return new Entry(path, size, lastModified, hash, target);
+        }
+
+        String getTarget() {
+            return target != null ? target : path;
+        }
+
+        /** File name without the directory */
+        String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        /**
+         * Same size and timestamp, and checksum if both have one?
+         * Timestamps are compared in whole seconds as some filesystems do not keep more.
+         */
+        boolean sameAs(Entry other) {
+            return size == other.size && lastModified / 1000 == other.lastModified / 1000
+                && (hash == null || other.hash == null || hash.equals(other.hash));
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * List files under the given directory matching an Ant GLOB pattern.
+     * @param srcDir Source directory
+     * @param filter Ant GLOB pattern
+     * @return Matching files, with paths using '/' as separator
+     */
+    static List<Entry> list(FilePath srcDir, String filter)
+            throws IOException, InterruptedException {
+        return list(srcDir, filter, null, false);
+    }
+
+    /**
+     * List files under the given directory matching an Ant GLOB pattern.
+     * @param excludes Ant GLOB pattern of files to leave out, or null
+     * @param checksum Also compute the MD5 of each file
+     */
+    static List<Entry> list(FilePath srcDir, String filter, String excludes, boolean checksum)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return srcDir.act(new ListFiles(filter, excludes, checksum));
+        } finally {
+            CopyStatsAction.Record.listed(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Map files to their names only, for copying into a single directory.
+     * Where several files have the same name only the last one is kept.
+     * @param skipped Receives the paths of the files that are not kept
+     */
+    static List<Entry> flatten(List<Entry> files, List<String> skipped) {
+        Map<String,Entry> byName = new LinkedHashMap<String,Entry>();
+        for (Entry entry : files) {
+            Entry previous = byName.remove(entry.getName());
+            if (previous != null) skipped.add(previous.path);
+            byName.put(entry.getName(), entry.copyTo(entry.getName()));
+        }
+        return new ArrayList<Entry>(byName.values());
+    }
+
+    /**
+     * Find which of the given files are missing or different in the target directory.
+     * All files are checked with a single call to the node where the target resides.
+     * @param files Source files, with checksums if they should be compared too
+     * @return Files to copy
+     */
+    static List<Entry> changed(List<Entry> files, FilePath targetDir)
+            throws IOException, InterruptedException {
+        List<String> paths = new ArrayList<String>(files.size());
+        boolean checksum = false;
+        for (Entry entry : files) {
+            paths.add(entry.path);
+            checksum |= entry.hash != null;
+        }
+        long start = System.nanoTime();
+        Map<String,Entry> existing;
+        try {
+            existing = targetDir.act(new Stat(paths, checksum));
+        } finally {
+            CopyStatsAction.Record.listed(System.nanoTime() - start);
+        }
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : files) {
+            Entry current = existing.get(entry.path);
+            if (current == null || !entry.sameAs(current)) result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * Copy the given files from srcDir to targetDir, keeping their relative paths.
+     * @return Number of files copied
+     */
+    static int copy(FilePath srcDir, List<Entry> files, FilePath targetDir)
+            throws IOException, InterruptedException {
+        CopyArtifact.DescriptorImpl d =
+                Hudson.getInstance().getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        Compression compression = d.getCompression();
+        int level = d.getCompressionLevel();
+        if (srcDir.getChannel() == targetDir.getChannel()) {
+            // Both on the same node; no need to stream anything through the master.
+            return srcDir.act(new LocalCopy(null, targetDir.getRemote(), files, 1, false));
+        }
+        if (!srcDir.isRemote()) {
+            Pipe pipe = Pipe.createLocalToRemote();
+            Future<Integer> future = targetDir.actAsync(new Receiver(pipe));
+            try {
+                send(new File(srcDir.getRemote()), files, CopyScheduler.get().pace(pipe.getOut()),
+                     compression, level);
+            } finally {
+                pipe.getOut().close();
+            }
+            return get(future);
+        }
+        if (!targetDir.isRemote()) {
+            Pipe pipe = Pipe.createRemoteToLocal();
+            Future<Integer> future = srcDir.actAsync(new Sender(files, pipe, compression, level));
+            InputStream in = pipe.getIn();
+            try {
+                receive(CopyScheduler.get().pace(in), new File(targetDir.getRemote()));
+            } finally {
+                in.close();
+            }
+            return get(future);
+        }
+        // Two different slaves: relay the stream through this node.
+        Pipe fromSource = Pipe.createRemoteToLocal(), toTarget = Pipe.createLocalToRemote();
+        Future<Integer> sent = srcDir.actAsync(new Sender(files, fromSource, compression, level));
+        Future<Integer> received = targetDir.actAsync(new Receiver(toTarget));
+        InputStream in = fromSource.getIn();
+        try {
+            Util.copyStream(CopyScheduler.get().pace(in), toTarget.getOut());
+        } finally {
+            in.close();
+            toTarget.getOut().close();
+        }
+        get(sent);
+        return get(received);
+    }
+
+    /**
+     * Copy the given files without streaming them, where srcDir and targetDir are on the
+     * same node or {@link #isShared shared}.  Files are copied on the target's node.
+     * @param threads Number of files to copy at once
+     * @param link Hardlink or clone files rather than copy them, where possible
+     * @return Number of files copied
+     */
+    static int copyLocal(FilePath srcDir, List<Entry> files, FilePath targetDir, int threads,
+                         boolean link) throws IOException, InterruptedException {
+        if (srcDir.getChannel() == targetDir.getChannel())
+            return srcDir.act(new LocalCopy(null, targetDir.getRemote(), files, threads, link));
+        return targetDir.act(new LocalCopy(srcDir.getRemote(), null, files, threads, link));
+    }
+
+    /**
+     * Are srcDir and targetDir on the same node, or on storage shared between nodes,
+     * so files can be copied with {@link #copyLocal}?
+     */
+    static boolean isLocal(FilePath srcDir, FilePath targetDir)
+            throws IOException, InterruptedException {
+        return srcDir.getChannel() == targetDir.getChannel()
+            || (LocalCopyMethod.SHARED_STORAGE && isShared(srcDir, targetDir));
+    }
+
+    /**
+     * Can the slave where targetDir resides read srcDir on the master at the same path,
+     * as when HUDSON_HOME is on storage the slave mounts too?  Checked once per slave
+     * by writing a file under HUDSON_HOME and reading it from the slave.
+     */
+    static boolean isShared(FilePath srcDir, FilePath targetDir)
+            throws IOException, InterruptedException {
+        if (srcDir.isRemote() || !targetDir.isRemote()) return false;
+        File root = Hudson.getInstance().getRootDir();
+        if (!srcDir.getRemote().startsWith(root.getPath() + File.separator)) return false;
+        VirtualChannel channel = targetDir.getChannel();
+        synchronized (SHARED) {
+            Boolean shared = SHARED.get(channel);
+            if (shared != null) return shared.booleanValue();
+        }
+        String token = UUID.randomUUID().toString();
+        File marker = File.createTempFile("copyartifact", ".shared", root);
+        boolean shared;
+        try {
+            OutputStream out = new FileOutputStream(marker);
+            try {
+                out.write(token.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            shared = token.equals(targetDir.act(new ReadMarker(marker.getPath())));
+        } finally {
+            marker.delete();
+        }
+        synchronized (SHARED) {
+            SHARED.put(channel, Boolean.valueOf(shared));
+        }
+        return shared;
+    }
+
+    /**
+     * Load the classes used while copying on the node of the given directory, ahead of
+     * any copy.  A class loaded from the master in the middle of a transfer may wait
+     * behind the stream and hang the slave (HUDSON-5977).
+     */
+    static void preload(FilePath dir) throws IOException, InterruptedException {
+        if (!dir.isRemote()) return;
+        VirtualChannel channel = dir.getChannel();
+        synchronized (PRELOADED) {
+            if (PRELOADED.containsKey(channel)) return;
+        }
+        List<String> names = new ArrayList<String>();
+        for (Class<?> type : new Class<?>[] { FileTransfer.class, Compression.class,
+                                              GlobMatcher.class, ArchiveExtractor.class }) {
+            names.add(type.getName());
+            for (Class<?> nested : type.getDeclaredClasses()) names.add(nested.getName());
+        }
+        channel.call(new Preload(names));
+        synchronized (PRELOADED) {
+            PRELOADED.put(channel, Boolean.TRUE);
+        }
+    }
+
+    static int get(Future<Integer> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw new IOException2(ex.getCause());
+        }
+    }
+
+    static int send(File baseDir, List<Entry> files, OutputStream out,
+                    Compression compression, int level) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        byte[] buf = new byte[Compression.BLOCK_SIZE], packed = new byte[Compression.BLOCK_SIZE];
+        data.writeUTF(compression.name());
+        for (Entry entry : files) {
+            File file = new File(baseDir, entry.path);
+            long size = file.length();
+            data.writeBoolean(true);
+            data.writeUTF(entry.getTarget());
+            data.writeLong(size);
+            data.writeLong(file.lastModified());
+            data.writeInt(mode(file));
+            // Skip compression for files known to be compressed already, and for the rest
+            // of a file once its first block does not get smaller.
+            boolean compress = compression != Compression.NONE && !Compression.isCompressed(entry.path);
+            InputStream in = new FileInputStream(file);
+            try {
+                // Send exactly the size announced above, even if the file changes meanwhile
+                for (long left = size; left > 0; ) {
+                    int len = readBlock(in, buf, (int)Math.min(buf.length, left));
+                    if (len < 0) throw new EOFException(file + " was truncated while copying");
+                    int packedLen = compress ? compression.compress(buf, len, packed, level) : -1;
+                    data.writeInt(len);
+                    data.writeInt(packedLen);
+                    if (packedLen >= 0) {
+                        data.write(packed, 0, packedLen);
+                    } else {
+                        data.write(buf, 0, len);
+                        compress = false;
+                    }
+                    left -= len;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        data.writeBoolean(false);
+        data.flush();
+        return files.size();
+    }
+
+    private static int readBlock(InputStream in, byte[] buf, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(buf, total, len - total);
+            if (n < 0) return total > 0 ? total : -1;
+            total += n;
+        }
+        return total;
+    }
+
+    static int receive(InputStream in, File targetDir) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        byte[] buf = new byte[Compression.BLOCK_SIZE], packed = new byte[Compression.BLOCK_SIZE];
+        Compression compression = Compression.valueOf(data.readUTF());
+        int cnt = 0;
+        while (data.readBoolean()) {
+            String path = data.readUTF();
+            long size = data.readLong(), lastModified = data.readLong();
+            int mode = data.readInt();
+            File file = new File(targetDir, checkPath(path));
+            file.getParentFile().mkdirs();
+            file.delete();  // In case it is a link to a file elsewhere
+            OutputStream out = new FileOutputStream(file);
+            try {
+                for (long left = size; left > 0; ) {
+                    int len = data.readInt(), packedLen = data.readInt();
+                    if (len <= 0 || len > buf.length || packedLen > buf.length)
+                        throw new IOException("Corrupt stream while receiving " + path);
+                    if (packedLen >= 0) {
+                        data.readFully(packed, 0, packedLen);
+                        compression.decompress(packed, packedLen, buf, len);
+                    } else {
+                        data.readFully(buf, 0, len);
+                    }
+                    out.write(buf, 0, len);
+                    left -= len;
+                }
+            } finally {
+                out.close();
+            }
+            finish(file, lastModified, mode);
+            cnt++;
+        }
+        return cnt;
+    }
+
+    static void copyFile(File source, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        target.delete();  // In case it is a link to a file elsewhere
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                // Let the OS move the bytes; transferTo may copy less than asked for
+                FileChannel from = in.getChannel(), to = out.getChannel();
+                long size = from.size();
+                for (long pos = 0, n; pos < size; pos += n)
+                    if ((n = from.transferTo(pos, size - pos, to)) <= 0) break;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        finish(target, source.lastModified(), mode(source));
+    }
+
+    /**
+     * Create a hard link to the source file.
+     * @return False if the link could not be created, so the file should be copied instead
+     */
+    static boolean link(File source, File target) {
+        if (Functions.isWindows()) return false;
+        try {
+            return PosixAPI.get().link(source.getPath(), target.getPath()) == 0;
+        } catch (RuntimeException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Clone the source file where the filesystem supports copy-on-write clones
+     * (reflinks), using <tt>cp --reflink=always</tt>.
+     * @return False if the file could not be cloned, so should be copied instead
+     */
+    static boolean reflink(File source, File target) {
+        if (Functions.isWindows()) return false;
+        try {
+            Process proc = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps,mode",
+                    source.getPath(), target.getPath()).redirectErrorStream(true).start();
+            proc.getOutputStream().close();
+            proc.getInputStream().close();
+            return proc.waitFor() == 0;
+        } catch (IOException ex) {
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Guard against paths escaping the target directory, on any platform.
+     * @return The path with '/' as separator
+     */
+    static String checkPath(String path) throws IOException {
+        String normalized = path.replace('\\', '/');
+        boolean valid = !normalized.startsWith("/") && !new File(normalized).isAbsolute()
+                // A drive letter, as in "C:x", which is relative to that drive on Windows
+                && !(normalized.length() >= 2 && normalized.charAt(1) == ':');
+        for (String segment : normalized.split("/"))
+            if (segment.equals("..")) valid = false;
+        if (!valid) throw new IOException("Invalid path in artifact stream: " + path);
+        return normalized;
+    }
+
+    static int mode(File file) {
+        if (Functions.isWindows()) return -1;
+        try {
+            return PosixAPI.get().stat(file.getPath()).mode() & 0777;
+        } catch (RuntimeException ex) {
+            return -1;  // Permissions are not essential to the copy
+        }
+    }
+
+    static void finish(File file, long lastModified, int mode) {
+        file.setLastModified(lastModified);
+        if (mode > 0 && !Functions.isWindows()) try {
+            PosixAPI.get().chmod(file.getPath(), mode);
+        } catch (RuntimeException ignore) { }
+    }
+
+    static Entry stat(File baseDir, String path, boolean checksum) throws IOException {
+        File file = new File(baseDir, path);
+        String hash = null;
+        if (checksum) {
+            InputStream in = new FileInputStream(file);
+            try {
+                hash = Util.getDigestOf(in);
+            } finally {
+                in.close();
+            }
+        }
+        return new Entry(path, file.length(), file.lastModified(), hash);
+    }
+
+    private static final class ListFiles implements FileCallable<List<Entry>> {
+        private final String filter, excludes;
+        private final boolean checksum;
+
+        ListFiles(String filter, String excludes, boolean checksum) {
+            this.filter = filter;
+            this.excludes = excludes;
+            this.checksum = checksum;
+        }
+
+        public List<Entry> invoke(File baseDir, VirtualChannel channel) throws IOException {
+            List<Entry> listed = ArtifactManifest.list(baseDir, filter, excludes, checksum);
+            if (listed != null && exist(baseDir, listed)) return listed;
+            List<String> paths;
+            GlobMatcher matcher = GlobMatcher.compile(filter, excludes);
+            if (matcher != null) {
+                paths = matcher.scan(baseDir);
+            } else {
+                DirectoryScanner ds = Util.createFileSet(baseDir, filter, excludes)
+                        .getDirectoryScanner(new org.apache.tools.ant.Project());
+                paths = new ArrayList<String>();
+                for (String path : ds.getIncludedFiles())
+                    paths.add(path.replace(File.separatorChar, '/'));
+            }
+            List<Entry> result = new ArrayList<Entry>(paths.size());
+            for (String path : paths)
+                result.add(stat(baseDir, path, checksum));
+            return result;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Are all the listed files still there?  If not, a manifest is out of date.
+     */
+    private static boolean exist(File baseDir, List<Entry> files) {
+        for (Entry file : files)
+            if (!new File(baseDir, file.path).isFile()) return false;
+        return true;
+    }
+
+    private static final class Stat implements FileCallable<Map<String,Entry>> {
+        private final List<String> paths;
+        private final boolean checksum;
+
+        Stat(List<String> paths, boolean checksum) {
+            this.paths = paths;
+            this.checksum = checksum;
+        }
+
+        public Map<String,Entry> invoke(File baseDir, VirtualChannel channel) throws IOException {
+            Map<String,Entry> result = new HashMap<String,Entry>();
+            for (String path : paths)
+                if (new File(baseDir, path).isFile())
+                    result.put(path, stat(baseDir, path, checksum));
+            return result;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Copies files between two directories of the node it runs on.  Either directory
+     * may be the one it is invoked on, given as null.  When linking, each file is
+     * hardlinked, else cloned, else copied; once cloning fails it is not tried again.
+     */
+    private static final class LocalCopy implements FileCallable<Integer> {
+        private final String sourceDir, targetDir;
+        private final List<Entry> files;
+        private final int threads;
+        private final boolean link;
+        private transient volatile boolean noReflink;
+
+        LocalCopy(String sourceDir, String targetDir, List<Entry> files, int threads, boolean link) {
+            this.sourceDir = sourceDir;
+            this.targetDir = targetDir;
+            this.files = files;
+            this.threads = threads;
+            this.link = link;
+        }
+
+        private void copy(File source, File target) throws IOException {
+            if (link) {
+                target.getParentFile().mkdirs();
+                target.delete();
+                if (FileTransfer.link(source, target)) return;
+                if (!noReflink) {
+                    if (reflink(source, target)) return;
+                    noReflink = true;
+                }
+            }
+            copyFile(source, target);
+        }
+
+        public Integer invoke(File dir, VirtualChannel channel) throws IOException {
+            final File source = sourceDir != null ? new File(sourceDir) : dir,
+                       target = targetDir != null ? new File(targetDir) : dir;
+            if (threads <= 1 || files.size() <= 1) {
+                for (Entry entry : files)
+                    copy(new File(source, entry.path), new File(target, entry.getTarget()));
+                return files.size();
+            }
+            // Each thread takes the next file to copy until none are left
+            final AtomicInteger next = new AtomicInteger();
+            int count = Math.min(threads, files.size());
+            List<Future<Void>> results = new ArrayList<Future<Void>>(count);
+            try {
+                for (int i = 0; i < count; i++)
+                    results.add(EXECUTOR.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            for (int n; (n = next.getAndIncrement()) < files.size(); ) {
+                                Entry entry = files.get(n);
+                                copy(new File(source, entry.path), new File(target, entry.getTarget()));
+                            }
+                            return null;
+                        }
+                    }));
+                for (Future<Void> result : results) try {
+                    result.get();
+                } catch (ExecutionException ex) {
+                    throw new IOException2("Failed to copy files to " + target, ex.getCause());
+                } catch (InterruptedException ex) {
+                    throw new IOException2("Interrupted copying files to " + target, ex);
+                }
+                return files.size();
+            } finally {
+                for (Future<Void> result : results)
+                    result.cancel(true);
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Preload implements hudson.remoting.Callable<Void,IOException> {
+        private final List<String> names;
+
+        Preload(List<String> names) {
+            this.names = names;
+        }
+
+        public Void call() throws IOException {
+            ClassLoader loader = Preload.class.getClassLoader();
+            try {
+                for (String name : names) Class.forName(name, true, loader);
+            } catch (ClassNotFoundException ex) {
+                throw new IOException2("Failed to load classes for copying artifacts", ex);
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads the token written by {@link #isShared}, or null if the file is not there.
+     */
+    private static final class ReadMarker implements FileCallable<String> {
+        private final String path;
+
+        ReadMarker(String path) {
+            this.path = path;
+        }
+
+        public String invoke(File dir, VirtualChannel channel) throws IOException {
+            File marker = new File(path);
+            if (!marker.isFile()) return null;
+            DataInputStream in = new DataInputStream(new FileInputStream(marker));
+            try {
+                byte[] token = new byte[(int)marker.length()];
+                in.readFully(token);
+                return new String(token, "UTF-8");
+            } finally {
+                in.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Sender implements FileCallable<Integer> {
+        private final List<Entry> files;
+        private final Pipe pipe;
+        private final Compression compression;
+        private final int level;
+
+        Sender(List<Entry> files, Pipe pipe, Compression compression, int level) {
+            this.files = files;
+            this.pipe = pipe;
+            this.compression = compression;
+            this.level = level;
+        }
+
+        public Integer invoke(File baseDir, VirtualChannel channel) throws IOException {
+            try {
+                return send(baseDir, files, pipe.getOut(), compression, level);
+            } finally {
+                pipe.getOut().close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Receiver implements FileCallable<Integer> {
+        private final Pipe pipe;
+
+        Receiver(Pipe pipe) {
+            this.pipe = pipe;
+        }
+
+        public Integer invoke(File targetDir, VirtualChannel channel) throws IOException {
+            InputStream in = pipe.getIn();
+            try {
+                return receive(in, targetDir);
+            } finally {
+                in.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
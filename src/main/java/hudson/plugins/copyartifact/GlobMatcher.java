@@ -0,0 +1,275 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.regex.Pattern;
+import org.apache.tools.ant.DirectoryScanner;
+
+/**
+ * Ant GLOB patterns, as accepted by {@link hudson.Util#createFileSet(File,String)},
+ * compiled once and matched while walking a directory tree.  Unlike Ant's
+ * DirectoryScanner only the directories which can hold a match are visited, and
+ * where every pattern continues with a fixed name, such as "dist/linux/**", that
+ * child is looked up directly instead of listing the directory, on case sensitive
+ * filesystems.
+ * Ant's default excludes apply as with DirectoryScanner.
+ * Used wherever this plugin lists files itself: parallel, incremental, flattened,
+ * linked, cached and extracting copies.  A default copy of all matching files goes
+ * through {@link hudson.FilePath#copyRecursiveTo}, which scans with DirectoryScanner.
+ */
+final class GlobMatcher {
+
+    private final Automaton includes, excludes;
+
+    private GlobMatcher(Automaton includes, Automaton excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * Compile a comma separated list of Ant GLOB patterns.
+     * @return null if a pattern is not supported, such as an absolute path,
+     *   in which case DirectoryScanner should be used instead
+     */
+    static GlobMatcher compile(String filter) {
+        return compile(filter, null);
+    }
+
+    /**
+     * Compile comma separated lists of Ant GLOB patterns to include and exclude.
+     * A directory matched by an exclude pattern ending in "**" is not entered at all.
+     * @param excludes Patterns to exclude besides Ant's default excludes, or null
+     */
+    static GlobMatcher compile(String filter, String excludes) {
+        List<String> patterns = split(filter);
+        if (patterns.isEmpty()) patterns.add("**");
+        Automaton include = Automaton.compile(patterns);
+        if (include == null) return null;
+        patterns = new ArrayList<String>(Arrays.asList(DirectoryScanner.getDefaultExcludes()));
+        if (excludes != null) patterns.addAll(split(excludes));
+        Automaton exclude = Automaton.compile(patterns);
+        return exclude != null ? new GlobMatcher(include, exclude) : null;
+    }
+
+    private static List<String> split(String patterns) {
+        List<String> result = new ArrayList<String>();
+        for (StringTokenizer tokens = new StringTokenizer(patterns, ","); tokens.hasMoreTokens(); ) {
+            String token = tokens.nextToken().trim();
+            if (token.length() > 0) result.add(token);
+        }
+        return result;
+    }
+
+    /**
+     * Find the files under the given directory which match.
+     * @return Paths relative to the directory, using '/' as separator
+     */
+    List<String> scan(File baseDir) throws IOException {
+        if (!baseDir.isDirectory())
+            throw new IOException("No such directory: " + baseDir);
+        List<String> result = new ArrayList<String>();
+        scan(baseDir, "", includes.start(), excludes.start(), isCaseSensitive(baseDir), result);
+        return result;
+    }
+
+    /**
+     * Can a child be looked up by name, or could a file of that name in different case
+     * be found instead, which DirectoryScanner would not match?  Checked on the directory
+     * itself, as the filesystem decides, such as the case insensitive default on Mac OS X.
+     * @return false if no file in the directory tells
+     */
+    private static boolean isCaseSensitive(File dir) {
+        String[] names = dir.list();
+        if (names == null) return false;
+        Set<String> listed = new HashSet<String>(Arrays.asList(names));
+        for (String name : names) {
+            String other = name.toUpperCase(Locale.ENGLISH);
+            if (other.equals(name)) other = name.toLowerCase(Locale.ENGLISH);
+            if (other.equals(name) || listed.contains(other)) continue;
+            return !new File(dir, other).exists();
+        }
+        return false;
+    }
+
+    /**
+     * Would a scan find the file with the given path, if it exists?
+     * @param path Path relative to the scanned directory, using '/' as separator
+     */
+    boolean matches(String path) {
+        BitSet in = includes.start(), ex = excludes.start();
+        for (int i = 0, next; ; i = next + 1) {
+            next = path.indexOf('/', i);
+            String name = next < 0 ? path.substring(i) : path.substring(i, next);
+            in = includes.step(in, name);
+            ex = excludes.step(ex, name);
+            if (next < 0) return includes.accepts(in) && !excludes.accepts(ex);
+            if (!includes.canDescend(in) || excludes.matchesAllBelow(ex)) return false;
+        }
+    }
+
+    private void scan(File dir, String prefix, BitSet in, BitSet ex, boolean lookup,
+                      List<String> result) {
+        String[] names = lookup ? includes.literals(in) : null;
+        if (names == null && (names = dir.list()) == null) return;
+        for (String name : names) {
+            BitSet childIn = includes.step(in, name);
+            if (childIn.isEmpty()) continue;
+            File child = new File(dir, name);
+            BitSet childEx = excludes.step(ex, name);
+            if (child.isDirectory()) {
+                if (includes.canDescend(childIn) && !excludes.matchesAllBelow(childEx))
+                    scan(child, prefix + name + '/', childIn, childEx, lookup, result);
+            } else if (includes.accepts(childIn) && !excludes.accepts(childEx) && child.isFile()) {
+                result.add(prefix + name);
+            }
+        }
+    }
+
+    /**
+     * The patterns as one nondeterministic automaton.  The segments of all patterns
+     * are laid out in one array, each pattern followed by {@link #END}; a state is an
+     * index into that array, the next segment to match.
+     */
+    private static final class Automaton {
+        private static final Object DEEP = new Object(), END = new Object();
+
+        /** String for a fixed name, Pattern for a wildcard, or DEEP or END */
+        private final Object[] segments;
+        private final BitSet start = new BitSet();
+
+        private Automaton(List<Object> segments, List<Integer> starts) {
+            this.segments = segments.toArray();
+            for (int s : starts) add(start, s);
+        }
+
+        static Automaton compile(List<String> patterns) {
+            List<Object> segments = new ArrayList<Object>();
+            List<Integer> starts = new ArrayList<Integer>();
+            for (String pattern : patterns) {
+                pattern = pattern.replace('\\', '/');
+                // Absolute patterns match against the full path, so leave them to Ant
+                if (pattern.startsWith("/") || pattern.indexOf(':') == 1) return null;
+                if (pattern.endsWith("/")) pattern += "**";
+                starts.add(segments.size());
+                for (StringTokenizer tokens = new StringTokenizer(pattern, "/"); tokens.hasMoreTokens(); ) {
+                    String token = tokens.nextToken();
+                    if (token.equals(".") || token.equals("..")) return null;
+                    if (token.equals("**")) {
+                        int last = segments.size() - 1;
+                        if (last < starts.get(starts.size() - 1) || segments.get(last) != DEEP)
+                            segments.add(DEEP);
+                    } else {
+                        segments.add(segment(token));
+                    }
+                }
+                segments.add(END);
+            }
+            return new Automaton(segments, starts);
+        }
+
+        private static Object segment(String token) {
+            if (token.indexOf('*') < 0 && token.indexOf('?') < 0) return token;
+            StringBuilder regex = new StringBuilder();
+            int literal = 0;
+            for (int i = 0; i < token.length(); i++) {
+                char c = token.charAt(i);
+                if (c != '*' && c != '?') continue;
+                if (i > literal) regex.append(Pattern.quote(token.substring(literal, i)));
+                regex.append(c == '*' ? ".*" : ".");
+                literal = i + 1;
+            }
+            if (literal < token.length()) regex.append(Pattern.quote(token.substring(literal)));
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+
+        BitSet start() {
+            return start;
+        }
+
+        /** Add a state, and the states after any "**" as it may match no directories. */
+        private void add(BitSet states, int s) {
+            states.set(s);
+            while (segments[s] == DEEP) states.set(++s);
+        }
+
+        /** States after matching a file or directory name. */
+        BitSet step(BitSet states, String name) {
+            BitSet next = new BitSet();
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                Object segment = segments[s];
+                if (segment == DEEP)
+                    add(next, s);
+                else if (segment instanceof String ? segment.equals(name)
+                         : segment instanceof Pattern && ((Pattern)segment).matcher(name).matches())
+                    add(next, s + 1);
+            }
+            return next;
+        }
+
+        /**
+         * The only names a directory in these states can usefully contain,
+         * or null if any pattern continues with a wildcard.
+         */
+        String[] literals(BitSet states) {
+            Set<String> names = new LinkedHashSet<String>();
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                Object segment = segments[s];
+                if (segment instanceof String) names.add((String)segment);
+                else if (segment != END) return null;
+            }
+            return names.toArray(new String[names.size()]);
+        }
+
+        boolean accepts(BitSet states) {
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1))
+                if (segments[s] == END) return true;
+            return false;
+        }
+
+        /** Could a path below a directory in these states match? */
+        boolean canDescend(BitSet states) {
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1))
+                if (segments[s] != END) return true;
+            return false;
+        }
+
+        /** Does every path below a directory in these states match? */
+        boolean matchesAllBelow(BitSet states) {
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1))
+                if (segments[s] == DEEP && segments[s + 1] == END) return true;
+            return false;
+        }
+    }
+}
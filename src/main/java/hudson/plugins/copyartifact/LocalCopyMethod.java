@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.Extension;
+import hudson.FilePath;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * CopyMethod that copies files directly from file to file, with no stream between
+ * nodes, when the source and target are on the same node or the target's slave mounts
+ * the master's HUDSON_HOME at the same path.  Several files are copied at once, as
+ * many as the configured number of transfer streams.  Otherwise copies as
+ * {@link ParallelCopyMethod} does.
+ */
+@Extension(ordinal=-40)
+public class LocalCopyMethod extends ParallelCopyMethod {
+
+    /**
+     * Check whether slaves share HUDSON_HOME with the master.  Turn off where shared
+     * storage is slower to read from a slave than streaming from the master.
+     */
+    public static boolean SHARED_STORAGE =
+            !Boolean.getBoolean(LocalCopyMethod.class.getName() + ".disableSharedStorage");
+
+    @Override
+    int copy(FilePath srcDir, List<FileTransfer.Entry> files, FilePath targetDir)
+            throws IOException, InterruptedException {
+        if (FileTransfer.isLocal(srcDir, targetDir))
+            return FileTransfer.copyLocal(srcDir, files, targetDir, getStreams(), false);
+        return super.copy(srcDir, files, targetDir);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.BuildListener;
+import hudson.model.Hudson;
+import hudson.model.StreamBuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Build step to copy artifacts from several projects, each configured as in
+ * {@link CopyArtifact}.  Sources are resolved and copied as many at once as the
+ * global configuration allows, rather than one step after another.  Console output
+ * of each source is kept apart and printed once that source is done.  The step
+ * fails if any source fails that is not optional, after all sources are done.
+ */
+public class MultiCopyArtifact extends Builder {
+
+    /**
+     * Threads for the sources of all steps.  Not the executor of
+     * {@link CopyArtifact.DescriptorImpl}, as a source copying from a matrix build waits
+     * on that one, and would deadlock once all its threads were sources waiting for it.
+     * Each step uses at most as many threads as the global configuration allows.
+     */
+    private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+    private final List<CopyArtifact> entries;
+
+    public MultiCopyArtifact(List<CopyArtifact> entries) {
+        this.entries = new ArrayList<CopyArtifact>(entries);
+    }
+
+    public List<CopyArtifact> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    @Override
+    public boolean perform(final AbstractBuild<?,?> build, final Launcher launcher,
+                           BuildListener listener) throws InterruptedException {
+        int threads = Math.min(entries.size(),
+                               getDescriptor().getCopyArtifactDescriptor().getConcurrentCopies());
+        if (threads <= 1) {
+            boolean result = true;
+            for (CopyArtifact entry : entries)
+                result &= entry.perform(build, launcher, listener);
+            return result;
+        }
+
+        // Each thread takes the next source until none are left
+        final List<FutureTask<Boolean>> results = new ArrayList<FutureTask<Boolean>>(entries.size());
+        List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>(entries.size());
+        for (final CopyArtifact entry : entries) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            outputs.add(output);
+            results.add(new FutureTask<Boolean>(new Callable<Boolean>() {
+                public Boolean call() throws InterruptedException {
+                    return entry.perform(build, launcher, new StreamBuildListener(output));
+                }
+            }));
+        }
+        final AtomicInteger next = new AtomicInteger();
+        List<Future<?>> workers = new ArrayList<Future<?>>(threads);
+        try {
+            for (int i = 0; i < threads; i++)
+                workers.add(EXECUTOR.submit(new Runnable() {
+                    public void run() {
+                        for (int n; (n = next.getAndIncrement()) < results.size(); )
+                            results.get(n).run();
+                    }
+                }));
+            boolean result = true;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    result &= results.get(i).get();
+                } catch (ExecutionException ex) {
+                    ex.getCause().printStackTrace(listener.getLogger());
+                    result = false;
+                } finally {
+                    try {
+                        outputs.get(i).writeTo(listener.getLogger());
+                    } catch (IOException ignore) { }
+                }
+            }
+            return result;
+        } finally {
+            // Do not leave copies running if this build is aborted
+            next.set(results.size());
+            for (Future<?> worker : workers)
+                worker.cancel(true);
+        }
+    }
+
+    @Override
+    public Action getProjectAction(AbstractProject<?,?> project) {
+        return entries.isEmpty() ? null : entries.get(0).getProjectAction(project);
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl)super.getDescriptor();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        public CopyArtifact.DescriptorImpl getCopyArtifactDescriptor() {
+            return Hudson.getInstance().getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        }
+
+        @Override
+        public Builder newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+            return new MultiCopyArtifact(req.bindJSONToList(CopyArtifact.class, formData.get("entries")));
+        }
+
+        public boolean isApplicable(Class<? extends AbstractProject> clazz) {
+            return true;
+        }
+
+        public String getDisplayName() {
+            return Messages.MultiCopyArtifact_DisplayName();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Hudson;
+import hudson.util.IOException2;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * CopyMethod that splits the files to copy into shards of about equal total size
+ * and sends each shard over its own stream, so a large artifact set is not limited
+ * by a single tar stream.  The number of streams is set in the global configuration;
+ * small sets are sent over one stream.  Only used when enabled in the global
+ * configuration, as it replaces the FilePath transfer of {@link FilePathCopyMethod}.
+ */
+@Extension(ordinal=-50)
+public class ParallelCopyMethod extends FilePathCopyMethod {
+
+    /**
+     * Fewest files worth opening another stream for.
+     */
+    public static int MIN_FILES_PER_STREAM =
+            Integer.getInteger(ParallelCopyMethod.class.getName() + ".minFilesPerStream", 500);
+
+    /**
+     * List the matching files, then send them over this plugin's own streams.
+     */
+    @Override
+    public int copyAll(FilePath srcDir, String filter, String excludes, FilePath targetDir)
+            throws IOException, InterruptedException {
+        return send(srcDir, FileTransfer.list(srcDir, filter, excludes, false), targetDir);
+    }
+
+    /**
+     * Copy the given files, using as many streams as configured and worthwhile.
+     */
+    @Override
+    int copy(final FilePath srcDir, List<FileTransfer.Entry> files, final FilePath targetDir)
+            throws IOException, InterruptedException {
+        int streams = Math.min(getStreams(), files.size() / Math.max(1, MIN_FILES_PER_STREAM));
+        if (streams <= 1)
+            return FileTransfer.copy(srcDir, files, targetDir);
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(streams);
+        try {
+            for (final List<FileTransfer.Entry> shard : shard(files, streams))
+                results.add(FileTransfer.EXECUTOR.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        return FileTransfer.copy(srcDir, shard, targetDir);
+                    }
+                }));
+            int cnt = 0;
+            for (Future<Integer> result : results) try {
+                cnt += result.get();
+            } catch (ExecutionException ex) {
+                throw new IOException2("Failed to copy files to " + targetDir, ex.getCause());
+            }
+            return cnt;
+        } finally {
+            for (Future<Integer> result : results)
+                result.cancel(true);
+        }
+    }
+
+    protected int getStreams() {
+        return Hudson.getInstance().getDescriptorByType(CopyArtifact.DescriptorImpl.class)
+                .getTransferStreams();
+    }
+
+    /**
+     * Split files into the given number of shards, each with about the same total size.
+     * Largest files are placed first, each into the shard with the smallest total so far.
+     */
+    static List<List<FileTransfer.Entry>> shard(List<FileTransfer.Entry> files, int count) {
+        List<FileTransfer.Entry> sorted = new ArrayList<FileTransfer.Entry>(files);
+        Collections.sort(sorted, new Comparator<FileTransfer.Entry>() {
+            public int compare(FileTransfer.Entry a, FileTransfer.Entry b) {
+                return a.size < b.size ? 1 : (a.size > b.size ? -1 : 0);
+            }
+        });
+        PriorityQueue<Shard> queue = new PriorityQueue<Shard>(count);
+        for (int i = 0; i < count; i++) queue.add(new Shard());
+        for (FileTransfer.Entry file : sorted) {
+            Shard smallest = queue.poll();
+            smallest.files.add(file);
+            smallest.size += file.size;
+            queue.add(smallest);
+        }
+        List<List<FileTransfer.Entry>> result = new ArrayList<List<FileTransfer.Entry>>(count);
+        for (Shard shard : queue)
+            if (!shard.files.isEmpty()) result.add(shard.files);
+        return result;
+    }
+
+    private static final class Shard implements Comparable<Shard> {
+        private final List<FileTransfer.Entry> files = new ArrayList<FileTransfer.Entry>();
+        private long size;
+
+        public int compareTo(Shard other) {
+            return size < other.size ? -1 : (size > other.size ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies artifacts to a slave from the {@link ArtifactCache} of another slave that
+ * already has them, over a direct connection between the two slaves, so a large
+ * fan-out does not pull the same files through the master's network link again and
+ * again.  The master only keeps track of which slaves cached which builds and
+ * introduces the two slaves to each other: the slave with the files listens on a
+ * port for one connection, presenting a one-time token, from the slave that needs
+ * them.  If that fails the files are copied from the master as usual.
+ * Enabled in the global configuration.
+ */
+final class PeerTransfer {
+
+    /**
+     * Milliseconds the slave with the files serves them, in all, waiting for the slave
+     * that needs them to connect.  Also the read timeout while receiving.
+     */
+    public static int TIMEOUT = Integer.getInteger(PeerTransfer.class.getName() + ".timeout", 30000);
+
+    /** Milliseconds to wait for a connection to the other slave, before copying from the master. */
+    public static int CONNECT_TIMEOUT =
+            Integer.getInteger(PeerTransfer.class.getName() + ".connectTimeout", 3000);
+
+    /**
+     * Address a slave listens on for other slaves, set on the slave, for hosts with
+     * several network interfaces.  By default the first address that is not a loopback
+     * or link-local address is used.
+     */
+    public static String ADDRESS = System.getProperty(PeerTransfer.class.getName() + ".address");
+
+    /** Names of the slaves whose cache holds artifacts of a build, by job and build number. */
+    private static final Map<String,Set<String>> HOLDERS =
+            new LinkedHashMap<String,Set<String>>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Set<String>> eldest) {
+            return size() > 10000;
+        }
+    };
+
+    private PeerTransfer() { }
+
+    private static String key(Run<?,?> run) {
+        return run.getParent().getFullName() + '#' + run.getNumber();
+    }
+
+    /**
+     * Note that the cache of the given slave holds artifacts of the given build.
+     */
+    static void record(Run<?,?> run, String node) {
+        synchronized (HOLDERS) {
+            Set<String> nodes = HOLDERS.get(key(run));
+            if (nodes == null) HOLDERS.put(key(run), nodes = new LinkedHashSet<String>());
+            nodes.remove(node);
+            nodes.add(node);
+        }
+    }
+
+    private static void forget(Run<?,?> run, String node) {
+        synchronized (HOLDERS) {
+            Set<String> nodes = HOLDERS.get(key(run));
+            if (nodes != null) nodes.remove(node);
+        }
+    }
+
+    /**
+     * Copy the given artifacts of a build into targetDir from the cache of another slave.
+     * @param node Name of the slave where targetDir resides
+     * @param console Receives a note of the files copied, or of a failure to copy them
+     * @return Paths of the files that were copied, which may be fewer than asked for
+     */
+    static Set<String> copy(Run<?,?> run, List<ArtifactCache.CachedFile> files, String node,
+            FilePath targetDir, PrintStream console) throws InterruptedException {
+        CopyArtifact.DescriptorImpl d =
+                Hudson.getInstance().getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        if (!d.isPeerTransfer() || files.isEmpty()) return Collections.emptySet();
+        List<String> peers;
+        synchronized (HOLDERS) {
+            Set<String> nodes = HOLDERS.get(key(run));
+            if (nodes == null) return Collections.emptySet();
+            peers = new ArrayList<String>(nodes);
+        }
+        // Ask the slave that got the files last first, so a fan-out spreads over the slaves
+        // that have them instead of all pulling from the first one
+        Collections.reverse(peers);
+        for (String peer : peers) {
+            if (peer.equals(node)) continue;
+            Node peerNode = peer.length() > 0 ? Hudson.getInstance().getNode(peer) : null;
+            Computer computer = peerNode != null ? peerNode.toComputer() : null;
+            ArtifactCache cache = peerNode != null ? ArtifactCache.get(peerNode) : null;
+            if (cache == null || computer == null || computer.isOffline()) {
+                forget(run, peer);
+                continue;
+            }
+            try {
+                Offer offer = cache.root.act(new Serve(files, d.getCompression(),
+                                                       d.getCompressionLevel(), TIMEOUT));
+                if (offer == null) {
+                    forget(run, peer);
+                    continue;
+                }
+                Set<String> received = targetDir.act(new Fetch(offer, files, CONNECT_TIMEOUT, TIMEOUT));
+                if (console != null) {
+                    console.println(Messages.PeerTransfer_Copied(received.size(), peer));
+                    if (received.size() < offer.paths.size())
+                        console.println(Messages.PeerTransfer_Rejected(
+                                offer.paths.size() - received.size(), peer));
+                }
+                return received;
+            } catch (IOException ex) {
+                forget(run, peer);
+                if (console != null)
+                    console.println(Messages.PeerTransfer_Failed(peer, ex.getMessage()));
+                LOGGER.log(Level.FINE, "Failed to copy artifacts of " + run.getFullDisplayName()
+                           + " from " + peer, ex);
+            }
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Where and how to fetch files from a slave.
+     */
+    private static final class Offer implements Serializable {
+        private final String address;
+        private final int port;
+        private final String token;
+        private final Set<String> paths;
+
+        Offer(String address, int port, String token, Set<String> paths) {
+            this.address = address;
+            this.port = port;
+            this.token = token;
+            this.paths = paths;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Listen for one connection to send the cached files, on the slave that has them.
+     * Returns null if the cache does not hold any of the files.
+     */
+    private static final class Serve implements FileCallable<Offer> {
+        private final List<ArtifactCache.CachedFile> files;
+        private final Compression compression;
+        private final int level, timeout;
+
+        Serve(List<ArtifactCache.CachedFile> files, Compression compression, int level, int timeout) {
+            this.files = files;
+            this.compression = compression;
+            this.level = level;
+            this.timeout = timeout;
+        }
+
+        public Offer invoke(final File dir, VirtualChannel channel) throws IOException {
+            final List<FileTransfer.Entry> entries = new ArrayList<FileTransfer.Entry>();
+            Set<String> paths = new HashSet<String>();
+            synchronized (ArtifactCache.Store.class) {
+                ArtifactCache.Store store = new ArtifactCache.Store(dir);
+                String root = dir.getPath() + File.separator;
+                for (ArtifactCache.CachedFile file : files) {
+                    File object = store.object(file.hash);
+                    if (!object.isFile() || object.length() != file.size) continue;
+                    String path = object.getPath().substring(root.length())
+                                        .replace(File.separatorChar, '/');
+                    entries.add(new FileTransfer.Entry(path, file.size, file.lastModified, null)
+                                .copyTo(file.path));
+                    paths.add(file.path);
+                }
+            }
+            if (entries.isEmpty()) return null;
+
+            final String token = UUID.randomUUID().toString();
+            // Listen only where the other slave is told to connect
+            InetAddress address = address();
+            final ServerSocket server = new ServerSocket(0, 1, address);
+            // One deadline for all connections, so strangers cannot keep the port open
+            final long deadline = System.currentTimeMillis() + timeout;
+            Thread thread = new Thread("Serving artifacts from " + dir) {
+                @Override
+                public void run() {
+                    try {
+                        // Ignore connections that do not present the token, until one does
+                        while (true) {
+                            long left = deadline - System.currentTimeMillis();
+                            if (left <= 0) return;  // Nobody came in time
+                            server.setSoTimeout((int)left);
+                            Socket socket = server.accept();
+                            try {
+                                try {
+                                    socket.setSoTimeout((int)Math.max(1,
+                                            deadline - System.currentTimeMillis()));
+                                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                                    if (!token.equals(in.readUTF())) continue;
+                                } catch (IOException ex) {
+                                    LOGGER.log(Level.FINE, "Ignoring connection from "
+                                               + socket.getRemoteSocketAddress() + " to " + dir, ex);
+                                    continue;
+                                }
+                                try {
+                                    FileTransfer.send(dir, entries, socket.getOutputStream(),
+                                                      compression, level);
+                                    socket.shutdownOutput();
+                                } catch (IOException ex) {
+                                    LOGGER.log(Level.FINE, "Failed to serve artifacts from " + dir, ex);
+                                }
+                                return;
+                            } finally {
+                                socket.close();
+                            }
+                        }
+                    } catch (SocketTimeoutException ex) {
+                        // Nobody came
+                    } catch (IOException ex) {
+                        LOGGER.log(Level.FINE, "Failed to serve artifacts from " + dir, ex);
+                    } finally {
+                        try {
+                            server.close();
+                        } catch (IOException ignore) { }
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            return new Offer(address.getHostAddress(), server.getLocalPort(), token, paths);
+        }
+
+        /** Address of this node for other slaves to connect to. */
+        private static InetAddress address() throws IOException {
+            if (ADDRESS != null) return InetAddress.getByName(ADDRESS);
+            for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
+                 e != null && e.hasMoreElements(); ) {
+                Enumeration<InetAddress> a = e.nextElement().getInetAddresses();
+                while (a.hasMoreElements()) {
+                    InetAddress address = a.nextElement();
+                    if (!address.isLoopbackAddress() && !address.isLinkLocalAddress()) return address;
+                }
+            }
+            return InetAddress.getByName(null);  // Only reachable from slaves on this host
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Connect to the slave that has the files and receive them, on the slave that needs them.
+     * Files whose content does not match the hash found on the master, and any file not
+     * offered, are deleted, so whatever the other end sends cannot enter the cache.
+     * Returns paths of the files received intact.
+     */
+    private static final class Fetch implements FileCallable<Set<String>> {
+        private final Offer offer;
+        private final List<ArtifactCache.CachedFile> files;
+        private final int connectTimeout, timeout;
+
+        Fetch(Offer offer, List<ArtifactCache.CachedFile> files, int connectTimeout, int timeout) {
+            this.offer = offer;
+            this.files = files;
+            this.connectTimeout = connectTimeout;
+            this.timeout = timeout;
+        }
+
+        public Set<String> invoke(File targetDir, VirtualChannel channel) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(offer.address, offer.port), connectTimeout);
+                socket.setSoTimeout(timeout);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeUTF(offer.token);
+                out.flush();
+                FileTransfer.receive(socket.getInputStream(), targetDir);
+            } finally {
+                socket.close();
+            }
+            Set<String> received = new HashSet<String>();
+            for (ArtifactCache.CachedFile file : files) {
+                if (!offer.paths.contains(file.path)) continue;
+                File target = new File(targetDir, FileTransfer.checkPath(file.path));
+                if (!target.isFile()) continue;
+                if (target.length() != file.size || !file.hash.equals(ArtifactCache.digest(target))) {
+                    LOGGER.warning("Rejecting " + file.path + " received from " + offer.address
+                                   + ", as its content does not match");
+                    continue;
+                }
+                // Cached copies may be newer than the artifacts
+                target.setLastModified(file.lastModified);
+                received.add(file.path);
+            }
+            deleteOthers(targetDir, "", received);
+            return received;
+        }
+
+        /**
+         * Delete files under the given directory other than those received intact.
+         */
+        private static void deleteOthers(File dir, String prefix, Set<String> received) {
+            File[] children = dir.listFiles();
+            if (children == null) return;
+            for (File child : children) {
+                String path = prefix + child.getName();
+                if (child.isDirectory()) {
+                    deleteOthers(child, path + '/', received);
+                    child.delete();  // Only if empty
+                } else if (!received.contains(path)) {
+                    child.delete();
+                }
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PeerTransfer.class.getName());
+}
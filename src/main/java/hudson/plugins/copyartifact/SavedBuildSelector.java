@@ -26,7 +26,9 @@ package hudson.plugins.copyartifact;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.model.Descriptor;
+import hudson.model.Job;
 import hudson.model.Run;
+import java.util.List;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -37,6 +39,12 @@ public class SavedBuildSelector extends BuildSelector {
     @DataBoundConstructor
     public SavedBuildSelector() { }
 
+    @Override
+    public Run<?,?> getBuild(Job<?,?> job, List<Run<?,?>> runList, EnvVars env) {
+        if (runList != null) return super.getBuild(job, runList, env);
+        return BuildIndex.get(job, BuildIndex.Kind.SAVED);
+    }
+
     @Override
     protected boolean isSelectable(Run<?,?> run, EnvVars env) {
         return run.isKeepLog();
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.copyartifact;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.PermalinkProjectAction.Permalink;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of builds found by selectors whose choice depends only on the builds of the
+ * source job, so many steps copying from "the last stable build of X" share one lookup.
+ * Entries for a job are dropped when one of its builds starts, completes, is deleted
+ * or is saved (as when marked to be kept), and when the job is renamed or deleted.
+ */
+public final class SelectionCache {
+
+    private static final int NONE = -1;
+
+    /** Selected build numbers, by job full name and selector. */
+    private static final Map<String,Map<String,Integer>> CACHE = new HashMap<String,Map<String,Integer>>();
+
+    /** Count of invalidations by job full name, to spot one during a lookup.  Guarded by CACHE. */
+    private static final Map<String,Integer> GENERATIONS = new HashMap<String,Integer>();
+
+    private static final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    private SelectionCache() { }
+
+    /**
+     * Find a build to copy artifacts from, using a cached result where possible.
+     * @see BuildSelector#getBuild
+     */
+    static Run<?,?> getBuild(BuildSelector selector, Job<?,?> job, EnvVars env) {
+        String key = key(selector);
+        if (key == null) return selector.getBuild(job, null, env);
+        String jobName = job.getFullName();
+        Integer number, generation;
+        synchronized (CACHE) {
+            Map<String,Integer> builds = CACHE.get(jobName);
+            number = builds != null ? builds.get(key) : null;
+            generation = GENERATIONS.get(jobName);
+            if (generation == null) GENERATIONS.put(jobName, generation = 0);
+        }
+        if (number != null) {
+            Run<?,?> run = number == NONE ? null : job.getBuildByNumber(number);
+            if (number == NONE || run != null) {
+                hits.incrementAndGet();
+                return run;
+            }
+        }
+        misses.incrementAndGet();
+        Run<?,?> run = selector.getBuild(job, null, env);
+        synchronized (CACHE) {
+            // A build may have changed while looking, leaving this result stale
+            if (!generation.equals(GENERATIONS.get(jobName))) return run;
+            Map<String,Integer> builds = CACHE.get(jobName);
+            if (builds == null) CACHE.put(jobName, builds = new HashMap<String,Integer>());
+            builds.put(key, run != null ? run.getNumber() : NONE);
+        }
+        return run;
+    }
+
+    /**
+     * Key for the given selector, or null if its choice may depend on more than the
+     * builds of the source job.  Subclasses are not cached, as they may override that.
+     */
+    private static String key(BuildSelector selector) {
+        Class<?> type = selector.getClass();
+        if (type == StatusBuildSelector.class)
+            return ((StatusBuildSelector)selector).isStable() ? "stable" : "successful";
+        if (type == SavedBuildSelector.class)
+            return "saved";
+        if (type == PermalinkBuildSelector.class) {
+            // Permalinks from other plugins may change without any build changing
+            String id = ((PermalinkBuildSelector)selector).id;
+            for (Permalink p : Permalink.BUILTIN)
+                if (p.getId().equals(id)) return "permalink:" + id;
+        }
+        return null;
+    }
+
+    private static void invalidate(String jobName) {
+        synchronized (CACHE) {
+            CACHE.remove(jobName);
+            Integer generation = GENERATIONS.get(jobName);
+            if (generation != null) GENERATIONS.put(jobName, generation + 1);
+        }
+    }
+
+    /**
+     * Drop entries for the given item and any jobs within it (like matrix configurations).
+     */
+    private static void invalidateAll(String itemName) {
+        synchronized (CACHE) {
+            for (Iterator<String> it = CACHE.keySet().iterator(); it.hasNext(); ) {
+                String jobName = it.next();
+                if (jobName.equals(itemName) || jobName.startsWith(itemName + '/')) it.remove();
+            }
+            // Lookups running for these jobs then do not store their results
+            for (Iterator<String> it = GENERATIONS.keySet().iterator(); it.hasNext(); ) {
+                String jobName = it.next();
+                if (jobName.equals(itemName) || jobName.startsWith(itemName + '/')) it.remove();
+            }
+        }
+    }
+
+    /**
+     * Number of selections answered from the cache.
+     */
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of selections which had to be looked up.
+     */
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    /** Runs ahead of other listeners, so {@link ArtifactPrefetcher} sees the new build selected. */
+    @Extension(ordinal=100)
+    public static final class RunListenerImpl extends RunListener<Run> {
+        public RunListenerImpl() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onStarted(Run r, TaskListener listener) {
+            invalidate(r.getParent().getFullName());
+        }
+
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            invalidate(r.getParent().getFullName());
+        }
+
+        @Override
+        public void onDeleted(Run r) {
+            invalidate(r.getParent().getFullName());
+        }
+    }
+
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Run && !((Run<?,?>)o).isBuilding())
+                invalidate(((Run<?,?>)o).getParent().getFullName());
+        }
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            invalidateAll(item.getParent().getFullName().length() > 0
+                       ? item.getParent().getFullName() + '/' + oldName : oldName);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            invalidateAll(item.getFullName());
+        }
+    }
+}
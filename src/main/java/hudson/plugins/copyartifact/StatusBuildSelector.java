@@ -26,8 +26,10 @@ package hudson.plugins.copyartifact;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.model.Descriptor;
+import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.Run;
+import java.util.List;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -51,6 +53,12 @@ public class StatusBuildSelector extends BuildSelector {
         return run.getResult().isBetterOrEqualTo(isStable() ? Result.SUCCESS : Result.UNSTABLE);
     }
 
+    @Override
+    public Run<?,?> getBuild(Job<?,?> job, List<Run<?,?>> runList, EnvVars env) {
+        if (runList != null) return super.getBuild(job, runList, env);
+        return BuildIndex.get(job, isStable() ? BuildIndex.Kind.STABLE : BuildIndex.Kind.SUCCESSFUL);
+    }
+
     @Extension(ordinal=100)
     public static final Descriptor<BuildSelector> DESCRIPTOR =
             new SimpleBuildSelectorDescriptor(
@@ -24,7 +24,9 @@
 package hudson.plugins.copyartifact;
 
 import hudson.FilePath;
+import hudson.Functions;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.matrix.Axis;
 import hudson.matrix.AxisList;
 import hudson.matrix.Combination;
@@ -33,6 +35,7 @@ import hudson.matrix.MatrixProject;
 import hudson.matrix.MatrixRun;
 import hudson.maven.MavenModuleSet;
 import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.Build;
 import hudson.model.BuildListener;
 import hudson.model.Cause.UserCause;
@@ -41,12 +44,26 @@ import hudson.model.FreeStyleProject;
 import hudson.model.ParametersAction;
 import hudson.model.Result;
 import hudson.model.StringParameterValue;
+import hudson.os.PosixAPI;
 import hudson.slaves.DumbSlave;
 import hudson.slaves.SlaveComputer;
 import hudson.tasks.ArtifactArchiver;
 import hudson.tasks.Builder;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+import javax.management.ObjectName;
+import org.apache.tools.ant.DirectoryScanner;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
 import org.jvnet.hudson.test.ExtractResourceSCM;
@@ -89,6 +106,31 @@ public class CopyArtifactTest extends HudsonTestCase {
         }
     }
 
+    private static class ArchiveBuilder extends Builder {
+        @Override
+        public boolean perform(
+                AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException, IOException {
+            // Pack the usual files into archives to extract
+            new ArtifactBuilder().perform(build, launcher, listener);
+            FilePath ws = build.getWorkspace();
+            ws.child("dist").mkdirs();
+            OutputStream out = ws.child("dist/bundle.zip").write();
+            try {
+                ws.zip(out, "subdir/**,deepfoo/**");
+            } finally {
+                out.close();
+            }
+            out = FilePath.TarCompression.GZIP.compress(ws.child("dist/bundle.tgz").write());
+            try {
+                ws.tar(out, "subdir/**");
+            } finally {
+                out.close();
+            }
+            return true;
+        }
+    }
+
     private FreeStyleProject createArtifactProject(String name) throws IOException {
         FreeStyleProject p = name != null ? createFreeStyleProject(name) : createFreeStyleProject();
         p.getBuildersList().add(new ArtifactBuilder());
@@ -164,6 +206,54 @@ public class CopyArtifactTest extends HudsonTestCase {
         assertFile(false, "deepfoo/a/b/c.log", b);
     }
 
+    public void testCopyStats() throws Exception {
+        FreeStyleProject other = createArtifactProject(),
+                         p = createProject(other.getName(), "", "", false, false, false);
+        other.getBuildersList().add(new ContentBuilder());
+        FreeStyleBuild source = assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        CopyStatsAction stats = b.getAction(CopyStatsAction.class);
+        assertNotNull(stats);
+        assertEquals(1, stats.getRecords().size());
+        CopyStatsAction.Record record = stats.getRecords().get(0);
+        assertEquals(other.getName(), record.getProject());
+        assertEquals(source.getNumber(), record.getBuild());
+        assertEquals(5, record.getFiles());
+        // The default copy goes through FilePath, which does not tell how much it sent
+        assertFalse(record.isBytesKnown());
+        Action graph = p.getBuildersList().get(CopyArtifact.class).getProjectAction(p);
+        assertTrue(graph instanceof CopyStatsProjectAction);
+        assertTrue(((CopyStatsProjectAction)graph).isGraphActive());
+        // Parallel copy lists the files before sending them, so counts their size
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setParallelCopy(true);
+        try {
+            b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        } finally {
+            d.setParallelCopy(false);
+        }
+        record = b.getAction(CopyStatsAction.class).getRecords().get(0);
+        assertTrue(record.isBytesKnown());
+        assertEquals(b.getWorkspace().child("big.txt").length()
+                     + b.getWorkspace().child("data.zip").length(), record.getBytes());
+    }
+
+    public void testCopyMetrics() throws Exception {
+        FreeStyleProject other = createArtifactProject(),
+                         p = createProject(other.getName(), "", "", false, false, false);
+        assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        CopyMetrics metrics = CopyMetrics.get();
+        long copies = metrics.getCopies(), files = metrics.getFilesCopied(),
+             selections = metrics.getSelections();
+        assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertEquals(0, metrics.getInFlightCopies());
+        assertEquals(copies + 1, metrics.getCopies());
+        assertEquals(files + 3, metrics.getFilesCopied());
+        assertEquals(selections + 1, metrics.getSelections());
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(
+                "hudson.plugins.copyartifact:type=Throughput,source=" + ObjectName.quote(other.getName()))));
+    }
+
     public void testCopyToTarget() throws Exception {
         FreeStyleProject other = createArtifactProject(),
                  p = createProject(other.getName(), "deep*/**", "new/deep/dir",
@@ -194,6 +284,230 @@ public class CopyArtifactTest extends HudsonTestCase {
         assertFile(true, "deepfoo/a/b/c.log", b);
     }
 
+    /** Test a slave on this machine is found to share HUDSON_HOME and copied to directly */
+    public void testCopyToSharedSlave() throws Exception {
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        // FilePath copies unless parallel copy is enabled
+        assertSame(FilePathCopyMethod.class, d.getCopyMethod().getClass());
+        FreeStyleProject legacy = createArtifactProject(),
+                         q = createProject(legacy.getName(), "", "", false, false, false);
+        assertBuildStatusSuccess(legacy.scheduleBuild2(0, new UserCause()).get());
+        FreeStyleBuild copied = assertBuildStatusSuccess(q.scheduleBuild2(0, new UserCause()).get());
+        // Went through FilePath.copyRecursiveTo, which does not tell the bytes sent
+        assertFalse(copied.getAction(CopyStatsAction.class).getTotal().isBytesKnown());
+        d.setParallelCopy(true);
+        try {
+            assertTrue(d.getCopyMethod() instanceof LocalCopyMethod);
+            DumbSlave node = createSlave();
+            FreeStyleProject other = createArtifactProject(),
+                             p = createProject(other.getName(), "", "", false, false, false);
+            FreeStyleBuild source = assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+            assertTrue(FileTransfer.isShared(new FilePath(source.getArtifactsDir()), node.getRootPath()));
+            p.setAssignedLabel(node.getSelfLabel());
+            FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+            assertSame(node, b.getBuiltOn());
+            assertFile(true, "foo.txt", b);
+            assertFile(true, "subdir/subfoo.txt", b);
+            assertFile(true, "deepfoo/a/b/c.log", b);
+        } finally {
+            d.setParallelCopy(false);
+        }
+    }
+
+    /** Test copy split over several streams, to a slave and to the master */
+    public void testParallelCopy() throws Exception {
+        int minFiles = ParallelCopyMethod.MIN_FILES_PER_STREAM;
+        ParallelCopyMethod.MIN_FILES_PER_STREAM = 1;
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setTransferStreams(3);
+        d.setParallelCopy(true);
+        LocalCopyMethod.SHARED_STORAGE = false;
+        try {
+            DumbSlave node = createSlave();
+            FreeStyleProject other = createArtifactProject(),
+                             p = createProject(other.getName(), "", "", false, false, false);
+            assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+            FreeStyleBuild b = p.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatusSuccess(b);
+            assertFile(true, "foo.txt", b);
+            assertFile(true, "subdir/subfoo.txt", b);
+            assertFile(true, "deepfoo/a/b/c.log", b);
+            p.setAssignedLabel(node.getSelfLabel());
+            b = p.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatusSuccess(b);
+            assertSame(node, b.getBuiltOn());
+            assertTrue(getLog(b), getLog(b).contains("Copied 3 artifacts"));
+            assertFile(true, "foo.txt", b);
+            assertFile(true, "subdir/subfoo.txt", b);
+            assertFile(true, "deepfoo/a/b/c.log", b);
+        } finally {
+            ParallelCopyMethod.MIN_FILES_PER_STREAM = minFiles;
+            d.setParallelCopy(false);
+            LocalCopyMethod.SHARED_STORAGE = true;
+        }
+    }
+
+    /** Test second copy of the same build to a slave is served from the slave's cache */
+    public void testCacheOnSlave() throws Exception {
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setCacheSize(10);
+        try {
+            DumbSlave node = createSlave();
+            FreeStyleProject other = createArtifactProject(),
+                             p = createProject(other.getName(), "", "", false, false, false);
+            assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+            p.setAssignedLabel(node.getSelfLabel());
+            assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+            FilePath cached = node.getRootPath().child("copyartifact-cache/objects");
+            // All three artifacts are empty files, so they share one cache entry
+            assertEquals(1, cached.list("**").length);
+            FreeStyleBuild b = p.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatusSuccess(b);
+            assertTrue(getLog(b), getLog(b).contains("Copied 3 artifacts"));
+            assertFile(true, "foo.txt", b);
+            assertFile(true, "subdir/subfoo.txt", b);
+            assertFile(true, "deepfoo/a/b/c.log", b);
+        } finally {
+            d.setCacheSize(0);
+        }
+    }
+
+    /** Test files left in the cache without an access time are evicted first */
+    public void testCacheEviction() throws Exception {
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setCacheSize(1);
+        try {
+            DumbSlave node = createSlave();
+            FreeStyleProject other = createArtifactProject(),
+                             p = createProject(other.getName(), "", "", false, false, false);
+            assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+            p.setAssignedLabel(node.getSelfLabel());
+            FilePath stray = node.getRootPath().child("copyartifact-cache/objects/00/00stray");
+            stray.write(new String(new char[2 * 1024 * 1024]), "UTF-8");
+            FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+            assertFile(true, "deepfoo/a/b/c.log", b);
+            assertFalse(stray.exists());
+            assertEquals(1, node.getRootPath().child("copyartifact-cache/objects").list("**").length);
+        } finally {
+            d.setCacheSize(0);
+        }
+    }
+
+    /** Test a slave gets artifacts from the cache of another slave that has them */
+    public void testPeerTransfer() throws Exception {
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setCacheSize(10);
+        d.setPeerTransfer(true);
+        LocalCopyMethod.SHARED_STORAGE = false;
+        try {
+            DumbSlave one = createSlave(), two = createSlave(), three = createSlave();
+            FreeStyleProject other = createArtifactProject(),
+                             p = createProject(other.getName(), "", "", false, false, false);
+            assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+            p.setAssignedLabel(one.getSelfLabel());
+            FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+            assertFalse(getLog(b), getLog(b).contains("artifact cache of"));
+            p.setAssignedLabel(two.getSelfLabel());
+            b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+            assertTrue(getLog(b), getLog(b).contains("Copied 3 files from the artifact cache of "
+                                                     + one.getNodeName()));
+            assertFile(true, "foo.txt", b);
+            assertFile(true, "subdir/subfoo.txt", b);
+            assertFile(true, "deepfoo/a/b/c.log", b);
+            // Falls back to the master when no other slave still has the files
+            one.getRootPath().child("copyartifact-cache/objects").deleteRecursive();
+            two.getRootPath().child("copyartifact-cache/objects").deleteRecursive();
+            p.setAssignedLabel(three.getSelfLabel());
+            b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+            assertFalse(getLog(b), getLog(b).contains("Copied 3 files from"));
+            assertFile(true, "foo.txt", b);
+            assertFile(true, "deepfoo/a/b/c.log", b);
+        } finally {
+            d.setCacheSize(0);
+            d.setPeerTransfer(false);
+            LocalCopyMethod.SHARED_STORAGE = true;
+        }
+    }
+
+    private static class ContentBuilder extends Builder {
+        @Override
+        public boolean perform(
+                AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException, IOException {
+            // Compressible file spanning several blocks, and a "compressed" one
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < 20000; i++) buf.append("line ").append(i).append('\n');
+            build.getWorkspace().child("big.txt").write(buf.toString(), "UTF-8");
+            build.getWorkspace().child("data.zip").write(buf.substring(0, 1000), "UTF-8");
+            return true;
+        }
+    }
+
+    /** Test artifacts of a new build are pushed to the cache of a slave where a consumer ran */
+    public void testPrefetch() throws Exception {
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setCacheSize(10);
+        d.setPrefetch(true);
+        try {
+            DumbSlave node = createSlave();
+            FreeStyleProject other = createArtifactProject(),
+                             p = createProject(other.getName(), "", "", false, false, false);
+            // A consumer whose selection depends on its own parameters is skipped,
+            // without stopping the prefetch for the others
+            createFreeStyleProject().getBuildersList().add(new CopyArtifact(other.getName(),
+                    new SpecificBuildSelector("$BUILD"), "", "", false, false));
+            assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+            p.setAssignedLabel(node.getSelfLabel());
+            assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+            FreeStyleBuild b = assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+            FilePath indexes = node.getRootPath().child(
+                    "copyartifact-cache/index/" + Util.getDigestOf(other.getFullName())),
+                     index = indexes.child(String.valueOf(b.getNumber()));
+            for (int i = 0; i < 100 && !index.exists(); i++) Thread.sleep(100);
+            assertTrue(index.exists());
+            // Not pushed where the consumer would not select the build
+            p.getBuildersList().replace(new CopyArtifact(other.getName(),
+                    new SavedBuildSelector(), "", "", false, false));
+            b = assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+            ArtifactPrefetcher.prefetch(b);
+            assertFalse(indexes.child(String.valueOf(b.getNumber())).exists());
+        } finally {
+            d.setCacheSize(0);
+            d.setPrefetch(false);
+        }
+    }
+
+    /** Test copy to a slave with each type of compression */
+    public void testCompression() throws Exception {
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        DumbSlave node = createSlave();
+        FreeStyleProject other = createFreeStyleProject(),
+                         p = createProject(other.getName(), "", "", false, false, false);
+        other.getBuildersList().add(new ContentBuilder());
+        other.getPublishersList().add(new ArtifactArchiver("**", "", false));
+        FreeStyleBuild src = other.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(src);
+        p.setAssignedLabel(node.getSelfLabel());
+        // The slave is on this machine; stream to it rather than copying directly
+        d.setParallelCopy(true);
+        LocalCopyMethod.SHARED_STORAGE = false;
+        try {
+            for (Compression compression : Compression.values()) {
+                d.setCompression(compression);
+                FreeStyleBuild b = p.scheduleBuild2(0, new UserCause()).get();
+                assertBuildStatusSuccess(b);
+                for (String name : new String[] { "big.txt", "data.zip" })
+                    assertEquals(compression + " " + name,
+                                 src.getWorkspace().child(name).readToString(),
+                                 b.getWorkspace().child(name).readToString());
+            }
+        } finally {
+            d.setCompression(Compression.GZIP);
+            d.setParallelCopy(false);
+            LocalCopyMethod.SHARED_STORAGE = true;
+        }
+    }
+
     public void testParameters() throws Exception {
         FreeStyleProject other = createArtifactProject(),
                          p = createProject("$PROJSRC", "$BASE/*.txt", "$TARGET/bar",
@@ -272,6 +586,92 @@ public class CopyArtifactTest extends HudsonTestCase {
         assertFile(true, "ARCH=x86/target/x86.out", b);
     }
 
+    /** Test copying from all configurations of a matrix job at once */
+    public void testMatrixAllConcurrent() throws Exception {
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setConcurrentCopies(4);
+        try {
+            testMatrixAll();
+        } finally {
+            d.setConcurrentCopies(1);
+        }
+    }
+
+    public void testMultiCopyArtifact() throws Exception {
+        FreeStyleProject one = createArtifactProject(), two = createArtifactProject(),
+                         none = createFreeStyleProject(), p = createFreeStyleProject();
+        p.getBuildersList().add(new MultiCopyArtifact(Arrays.asList(
+                new CopyArtifact(one.getName(), new StatusBuildSelector(false), "", "one", false, false),
+                new CopyArtifact(two.getName(), new StatusBuildSelector(false), "*.txt", "two", false, false),
+                new CopyArtifact(none.getName(), new StatusBuildSelector(false), "", "", false, true))));
+        assertBuildStatusSuccess(one.scheduleBuild2(0, new UserCause()).get());
+        assertBuildStatusSuccess(two.scheduleBuild2(0, new UserCause()).get());
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setConcurrentCopies(4);
+        try {
+            FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+            assertFile(true, "one/foo.txt", b);
+            assertFile(true, "one/deepfoo/a/b/c.log", b);
+            assertFile(true, "two/foo.txt", b);
+            assertFile(false, "two/subdir/subfoo.txt", b);
+            assertEquals(3, b.getAction(CopyStatsAction.class).getRecords().size());
+            assertEquals(3, CopyArtifact.ListenerImpl.getCopiers(p).size());
+            // A source that is not optional fails the step, once the others are copied
+            p.getBuildersList().replace(new MultiCopyArtifact(Arrays.asList(
+                    new CopyArtifact(none.getName(), new StatusBuildSelector(false), "", "", false, false),
+                    new CopyArtifact(one.getName(), new StatusBuildSelector(false), "", "", false, false))));
+            b = p.scheduleBuild2(0, new UserCause()).get();
+            assertBuildStatus(Result.FAILURE, b);
+            assertFile(true, "foo.txt", b);
+        } finally {
+            d.setConcurrentCopies(1);
+        }
+    }
+
+    public void testCopyScheduler() throws Exception {
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        CopyScheduler scheduler = CopyScheduler.get();
+        d.setMaxCopies(1);
+        try {
+            CopyScheduler.Slot first = scheduler.acquire("a", null);
+            final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (final String project : new String[] { "a", "a", "a", "b" }) {
+                Thread t = new Thread() {
+                    public void run() {
+                        try {
+                            CopyScheduler.Slot slot = CopyScheduler.get().acquire(project, null);
+                            order.add(project);
+                            CopyScheduler.get().release(slot);
+                        } catch (InterruptedException ignore) { }
+                    }
+                };
+                t.start();
+                threads.add(t);
+                while (scheduler.getQueued() < threads.size()) Thread.sleep(10);
+            }
+            assertEquals(1, scheduler.getRunning());
+            scheduler.release(first);
+            for (Thread t : threads) t.join();
+            // Project b does not wait for all copies from project a
+            assertEquals(Arrays.asList("a", "b", "a", "a"), order);
+            assertEquals(0, scheduler.getRunning());
+
+            FreeStyleProject other = createArtifactProject(),
+                             p = createProject(other.getName(), "", "", false, false, false);
+            assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+            first = scheduler.acquire("x", null);
+            Future<FreeStyleBuild> f = p.scheduleBuild2(0, new UserCause());
+            while (scheduler.getQueued() == 0) Thread.sleep(10);
+            scheduler.release(first);
+            FreeStyleBuild b = assertBuildStatusSuccess(f.get());
+            assertTrue(getLog(b).contains("Waited"));
+            assertFile(true, "foo.txt", b);
+        } finally {
+            d.setMaxCopies(0);
+        }
+    }
+
     private MavenModuleSet setupMavenJob() throws Exception {
         configureDefaultMaven();
         MavenModuleSet mp = createMavenProject();
@@ -315,6 +715,17 @@ public class CopyArtifactTest extends HudsonTestCase {
         assertFile(false, dir + "moduleC/1.0-SNAPSHOT/pom.xml", b);
     }
 
+    /** Test copying from all modules of a maven job at once */
+    public void testMavenAllConcurrent() throws Exception {
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setConcurrentCopies(4);
+        try {
+            testMavenAll();
+        } finally {
+            d.setConcurrentCopies(1);
+        }
+    }
+
     /** Test copying from maven job where artifacts manually archived instead of automatic */
     public void testMavenJobWithArchivePostBuildStep() throws Exception {
         MavenModuleSet mp = setupMavenJob();
@@ -375,6 +786,22 @@ public class CopyArtifactTest extends HudsonTestCase {
                      ((CopyArtifact)mp.getBuilders().get(0)).getProjectName());
     }
 
+    public void testConsumerIndex() throws Exception {
+        FreeStyleProject other = createFreeStyleProject(),
+                         p = createProject(other.getName(), "", "", true, false, false);
+        assertEquals(Collections.singletonList(p), ConsumerIndex.getConsumers(other.getName()));
+        // Projects are indexed again when loaded, in case the index missed a change
+        ConsumerIndex.get().remove(p.getFullName());
+        assertTrue(ConsumerIndex.getConsumers(other.getName()).isEmpty());
+        new ConsumerIndex.ItemListenerImpl().onLoaded();
+        assertEquals(Collections.singletonList(p), ConsumerIndex.getConsumers(other.getName()));
+        p.getBuildersList().clear();
+        assertTrue(ConsumerIndex.getConsumers(other.getName()).isEmpty());
+        p = createProject(other.getName(), "", "", true, false, false);
+        p.delete();
+        assertTrue(ConsumerIndex.getConsumers(other.getName()).isEmpty());
+    }
+
     public void testSavedBuildSelector() throws Exception {
         FreeStyleProject other = createArtifactProject(),
                          p = createFreeStyleProject();
@@ -392,6 +819,48 @@ public class CopyArtifactTest extends HudsonTestCase {
         assertFile(false, "subdir/subfoo.txt", b);
     }
 
+    /** Test that selectors find new, deleted and no longer saved builds */
+    public void testBuildIndex() throws Exception {
+        FreeStyleProject other = createArtifactProject();
+        StatusBuildSelector stable = new StatusBuildSelector(true),
+                            successful = new StatusBuildSelector(false);
+        SavedBuildSelector saved = new SavedBuildSelector();
+        assertNull(stable.getBuild(other, null, null));
+        assertNull(saved.getBuild(other, null, null));
+        FreeStyleBuild b1 = assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        assertSame(b1, stable.getBuild(other, null, null));
+        other.getBuildersList().add(new UnstableBuilder());
+        FreeStyleBuild b2 = assertBuildStatus(Result.UNSTABLE,
+                other.scheduleBuild2(0, new UserCause()).get());
+        assertSame(b1, stable.getBuild(other, null, null));
+        assertSame(b2, successful.getBuild(other, null, null));
+        b1.keepLog(true);
+        assertSame(b1, saved.getBuild(other, null, null));
+        b2.keepLog(true);
+        assertSame(b2, saved.getBuild(other, null, null));
+        b2.keepLog(false);
+        assertSame(b1, saved.getBuild(other, null, null));
+        b2.delete();
+        assertSame(b1, successful.getBuild(other, null, null));
+    }
+
+    /** Test that repeated selections are cached until a build of the source job changes */
+    public void testSelectionCache() throws Exception {
+        FreeStyleProject other = createArtifactProject();
+        StatusBuildSelector selector = new StatusBuildSelector(true);
+        FreeStyleBuild b1 = assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        long hits = SelectionCache.getHitCount(), misses = SelectionCache.getMissCount();
+        assertSame(b1, SelectionCache.getBuild(selector, other, null));
+        assertSame(b1, SelectionCache.getBuild(selector, other, null));
+        assertEquals(hits + 1, SelectionCache.getHitCount());
+        assertEquals(misses + 1, SelectionCache.getMissCount());
+        assertEquals(Long.valueOf(hits + 1), ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName("hudson.plugins.copyartifact:type=CopyMetrics"), "SelectionCacheHits"));
+        FreeStyleBuild b2 = assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        assertSame(b2, SelectionCache.getBuild(selector, other, null));
+        assertEquals(misses + 2, SelectionCache.getMissCount());
+    }
+
     public void testSpecificBuildSelector() throws Exception {
         FreeStyleProject other = createArtifactProject(),
                          p = createFreeStyleProject();
@@ -434,6 +903,281 @@ public class CopyArtifactTest extends HudsonTestCase {
         assertFile(true, "newdir/c.log", b);
     }
 
+    public void testExcludes() throws Exception {
+        FreeStyleProject other = createArtifactProject(), p = createFreeStyleProject();
+        p.getBuildersList().add(new CopyArtifact(other.getName(), new StatusBuildSelector(false),
+                                                 "", "**/b/**, $EXT", "", false, false, false, false));
+        p.getBuildersList().add(new CopyArtifact(other.getName(), new StatusBuildSelector(false),
+                                                 "", "subdir/", "flat", true, false, false, false));
+        assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause(),
+                new ParametersAction(new StringParameterValue("EXT", "*.txt"))).get());
+        assertFile(false, "foo.txt", b);
+        assertFile(true, "subdir/subfoo.txt", b);
+        assertFile(false, "deepfoo/a/b/c.log", b);
+        assertFile(true, "flat/foo.txt", b);
+        assertFile(false, "flat/subfoo.txt", b);
+        assertFile(true, "flat/c.log", b);
+    }
+
+    /** Test files to copy are found in the manifest written when the build completed */
+    public void testManifest() throws Exception {
+        FreeStyleProject other = createArtifactProject(),
+                         p = createProject(other.getName(), "**/*.txt", "", false, false, false);
+        FreeStyleBuild s = assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        assertTrue(new File(s.getRootDir(), "copyartifact-manifest").isFile());
+        // A file slipped in without changing the directory timestamp is not in the
+        // manifest, so is not copied unless the artifacts are scanned.  Only copies
+        // listing their files read the manifest; a default copy goes through FilePath.
+        File artifactsDir = s.getArtifactsDir();
+        long timestamp = artifactsDir.lastModified();
+        new FilePath(artifactsDir).child("unlisted.txt").write("x", "UTF-8");
+        assertTrue(artifactsDir.setLastModified(timestamp));
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setParallelCopy(true);
+        FreeStyleBuild b;
+        try {
+            b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        } finally {
+            d.setParallelCopy(false);
+        }
+        assertFile(true, "foo.txt", b);
+        assertFile(true, "subdir/subfoo.txt", b);
+        assertFile(false, "deepfoo/a/b/c.log", b);
+        assertFile(false, "unlisted.txt", b);
+        new FilePath(artifactsDir).child("unlisted.txt").delete();
+        // Files added or deleted below the top directory make the manifest stale,
+        // so the artifacts are scanned instead
+        Thread.sleep(1000);  // For filesystems with timestamps in seconds
+        FilePath artifacts = new FilePath(s.getArtifactsDir());
+        artifacts.child("subdir/extra.txt").write("x", "UTF-8");
+        artifacts.child("subdir/subfoo.txt").delete();
+        b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertFile(true, "subdir/extra.txt", b);
+        b.getWorkspace().child("subdir").deleteRecursive();
+        artifacts.child("subdir/extra.txt").delete();
+        b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertTrue(getLog(b), getLog(b).contains("Copied 1 artifact"));
+        assertFile(false, "subdir/extra.txt", b);
+    }
+
+    /** Test incremental copy only replaces files that are missing or changed */
+    public void testIncremental() throws Exception {
+        FreeStyleProject other = createArtifactProject(), p = createFreeStyleProject();
+        p.getBuildersList().add(new CopyArtifact(other.getName(), new StatusBuildSelector(false),
+                                                 "", "", false, false, true));
+        assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        FreeStyleBuild b = p.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(b);
+        assertFile(true, "foo.txt", b);
+        // Change one file and remove another, then copy again:
+        b.getWorkspace().child("foo.txt").write("changed", "UTF-8");
+        b.getWorkspace().child("subdir/subfoo.txt").delete();
+        b = p.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(b);
+        assertTrue(getLog(b), getLog(b).contains("Copied 3 artifacts"));
+        assertEquals(0, b.getWorkspace().child("foo.txt").length());
+        assertFile(true, "subdir/subfoo.txt", b);
+        assertFile(true, "deepfoo/a/b/c.log", b);
+        // Nothing to copy when all files are up to date:
+        assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+    }
+
+    /**
+     * Test a copy listing its files only visits the directories which can hold a match.
+     * A default copy goes through FilePath and Ant's DirectoryScanner instead.
+     */
+    public void testPruning() throws Exception {
+        if (Functions.isWindows()) return;
+        FreeStyleProject other = createArtifactProject(),
+                         p = createProject(other.getName(), "deepfoo/**", "", false, false, false);
+        p.getBuildersList().add(new CopyArtifact(other.getName(), new StatusBuildSelector(false),
+                                                 "", "subdir/**", "all", false, false, false, false));
+        FreeStyleBuild s = assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        // Scan the artifacts rather than reading the manifest, with a directory that cannot be read
+        assertTrue(new File(s.getRootDir(), "copyartifact-manifest").delete());
+        FilePath subdir = new FilePath(s.getArtifactsDir()).child("subdir");
+        subdir.chmod(0);
+        CopyArtifact.DescriptorImpl d = hudson.getDescriptorByType(CopyArtifact.DescriptorImpl.class);
+        d.setParallelCopy(true);
+        try {
+            FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+            assertFile(true, "deepfoo/a/b/c.log", b);
+            assertFile(false, "foo.txt", b);
+            assertFile(true, "all/foo.txt", b);
+            assertFile(true, "all/deepfoo/a/b/c.log", b);
+            assertFile(false, "all/subdir/subfoo.txt", b);
+        } finally {
+            d.setParallelCopy(false);
+            subdir.chmod(0755);
+        }
+    }
+
+    public void testGlobMatcher() throws Exception {
+        FilePath dir = new FilePath(createTmpDir());
+        for (String path : new String[] { "a.log", "dist/linux/b1.jar", "dist/linux/x/y.txt",
+                "dist/win/b2.jar", "CVS/c.txt", "dist/linux/.svn/d.txt", "a/q/b/e.txt",
+                "Dist/Linux/f.txt" })
+            dir.child(path).write("x", "UTF-8");
+        for (String filter : new String[] { "", "dist/linux/**", "**/*.txt", "dist/",
+                "*.log, dist/**/b?.jar", "d*t/l*/**", "**/a/**/b/**", "dist/linux" }) {
+            DirectoryScanner ds = Util.createFileSet(new File(dir.getRemote()), filter)
+                    .getDirectoryScanner(new org.apache.tools.ant.Project());
+            Set<String> expected = new TreeSet<String>();
+            for (String path : ds.getIncludedFiles())
+                expected.add(path.replace(File.separatorChar, '/'));
+            assertEquals(filter, expected,
+                         new TreeSet<String>(GlobMatcher.compile(filter).scan(new File(dir.getRemote()))));
+        }
+        assertNull(GlobMatcher.compile("/abs/**"));
+    }
+
+    public void testCheckPath() throws Exception {
+        assertEquals("a/b/c.txt", FileTransfer.checkPath("a\\b/c.txt"));
+        assertEquals("a/..b", FileTransfer.checkPath("a/..b"));
+        for (String path : new String[] { "/x", "\\x", "..", "../x", "..\\x", "a/../../x",
+                                          "a\\..", "C:\\x", "C:x", "c:/x" }) {
+            try {
+                FileTransfer.checkPath(path);
+                fail(path);
+            } catch (IOException expected) { }
+        }
+    }
+
+    public void testLink() throws Exception {
+        FreeStyleProject other = createArtifactProject(), p = createFreeStyleProject();
+        p.getBuildersList().add(new CopyArtifact(other.getName(), new StatusBuildSelector(false),
+                                                 "", "", false, false, false, true));
+        assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertFile(true, "foo.txt", b);
+        assertFile(true, "subdir/subfoo.txt", b);
+        assertFile(true, "deepfoo/a/b/c.log", b);
+        if (!Functions.isWindows())
+            assertTrue(PosixAPI.get().stat(b.getWorkspace().child("foo.txt").getRemote()).nlink() > 1);
+        // Copying again replaces the links rather than writing through them
+        assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+    }
+
+    public void testEarlyCopy() throws Exception {
+        FreeStyleProject other = createArtifactProject(), p = createFreeStyleProject();
+        p.getBuildersList().add(new CopyArtifact(other.getName(), new StatusBuildSelector(false),
+                                                 "", "", "target", false, false, false, false, true));
+        assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertTrue(getLog(b), getLog(b).contains("in the background"));
+        assertFile(true, "target/foo.txt", b);
+        assertFile(true, "target/subdir/subfoo.txt", b);
+        assertFile(true, "target/deepfoo/a/b/c.log", b);
+        // Staging directory is cleaned up
+        assertEquals(0, hudson.getRootPath().child("copyartifact-staging").list().size());
+    }
+
+    public void testExtract() throws Exception {
+        FreeStyleProject other = createFreeStyleProject(), p = createFreeStyleProject();
+        other.getBuildersList().add(new ArchiveBuilder());
+        other.getPublishersList().add(new ArtifactArchiver("**", "", false));
+        p.getBuildersList().add(new CopyArtifact(other.getName(), new StatusBuildSelector(false),
+                "", "", "", false, false, false, false, false, true, "**/*.log,subdir/**"));
+        assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertTrue(getLog(b), getLog(b).contains("Extracted 2 files from dist/bundle.zip"));
+        assertFile(true, "foo.txt", b);
+        assertFile(true, "dist/deepfoo/a/b/c.log", b);
+        assertFile(true, "dist/subdir/subfoo.txt", b);
+        assertFile(false, "dist/bundle.zip", b);
+        assertFile(false, "dist/bundle.tgz", b);
+        // Entries not matched are not extracted
+        p.getBuildersList().replace(new CopyArtifact(other.getName(), new StatusBuildSelector(false),
+                "dist/*.tgz", "", "out", true, true, false, false, false, true, "**/*.log"));
+        b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertFile(false, "out/subdir/subfoo.txt", b);
+        assertFile(false, "out/bundle.tgz", b);
+    }
+
+    /** Test links in a tar archive are extracted as links, and only within the target */
+    public void testExtractLinks() throws Exception {
+        if (Functions.isWindows()) return;
+        File src = createTmpDir(), out = createTmpDir();
+        new FilePath(src).child("lib/lib.so.1").write("library", "UTF-8");
+        File archive = new File(src, "links.tar.gz");
+        exec(src, "ln", "-s", "lib.so.1", "lib/lib.so");
+        exec(src, "ln", "lib/lib.so.1", "lib/copy.so");
+        exec(src, "tar", "czf", archive.getPath(), "lib");
+        InputStream in = new FileInputStream(archive);
+        try {
+            assertEquals(3, ArchiveExtractor.extract(in, archive.getName(), out, "**"));
+        } finally {
+            in.close();
+        }
+        File link = new File(out, "lib/lib.so");
+        assertEquals(new File(out, "lib/lib.so.1").getCanonicalPath(), link.getCanonicalPath());
+        assertEquals("library", new FilePath(link).readToString());
+        assertEquals("library", new FilePath(new File(out, "lib/copy.so")).readToString());
+        // Links pointing outside the target directory are refused
+        exec(src, "ln", "-s", "../../secret", "lib/escape");
+        exec(src, "tar", "czf", archive.getPath(), "lib/escape");
+        in = new FileInputStream(archive);
+        try {
+            ArchiveExtractor.extract(in, archive.getName(), createTmpDir(), "**");
+            fail("Link out of the target directory was extracted");
+        } catch (IOException expected) {
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void exec(File dir, String... command) throws Exception {
+        Process proc = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+        proc.getOutputStream().close();
+        assertEquals(Arrays.toString(command), 0, proc.waitFor());
+    }
+
+    public void testArchiveMembers() throws Exception {
+        FreeStyleProject other = createFreeStyleProject(), p = createFreeStyleProject();
+        other.getBuildersList().add(new ArchiveBuilder());
+        other.getPublishersList().add(new ArtifactArchiver("**", "", false));
+        p.getBuildersList().add(new CopyArtifact(other.getName(), new StatusBuildSelector(false),
+                "foo.txt, dist/*.zip!/deepfoo/**, dist/bundle.tgz!/subdir/*.txt", "", "", false,
+                false, false, false));
+        assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertTrue(getLog(b), getLog(b).contains("Extracted 1 file from dist/bundle.zip"));
+        assertTrue(getLog(b), getLog(b).contains("Extracted 1 file from dist/bundle.tgz"));
+        assertFile(true, "foo.txt", b);
+        assertFile(true, "dist/deepfoo/a/b/c.log", b);
+        assertFile(true, "dist/subdir/subfoo.txt", b);
+        assertFile(false, "subdir/subfoo.txt", b);
+        assertFile(false, "dist/bundle.zip", b);
+
+        // To a slave, and from the workspace on a slave
+        DumbSlave slave = createSlave();
+        p.setAssignedLabel(slave.getSelfLabel());
+        b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertFile(true, "dist/deepfoo/a/b/c.log", b);
+        other.setAssignedLabel(slave.getSelfLabel());
+        assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause()).get());
+        p.setAssignedLabel(null);
+        p.getBuildersList().replace(new CopyArtifact(other.getName(), new WorkspaceSelector(),
+                "dist/bundle.zip!/**/c.log", "", "ws", false, false, false, false));
+        b = assertBuildStatusSuccess(p.scheduleBuild2(0, new UserCause()).get());
+        assertFile(true, "ws/dist/deepfoo/a/b/c.log", b);
+    }
+
+    public void testFlattenCollision() throws Exception {
+        FreeStyleProject other = createArtifactProject(),
+                         p = createProject(other.getName(), "", "", false, true, false);
+        // Archive both foo.txt and subdir/foo.txt
+        assertBuildStatusSuccess(other.scheduleBuild2(0, new UserCause(),
+                new ParametersAction(new StringParameterValue("FOO", "subdir/foo"))).get());
+        FreeStyleBuild b = p.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(b);
+        assertTrue(getLog(b), getLog(b).contains("Not copying"));
+        assertFile(true, "foo.txt", b);
+        assertFile(true, "subfoo.txt", b);
+        assertFile(true, "c.log", b);
+    }
+
     public void testOptional_MissingProject() throws Exception {
         // Missing project still fails even when copy is optional
         FreeStyleProject p = createProject("invalid", "", "", false, false, true);